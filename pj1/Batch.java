@@ -0,0 +1,370 @@
+/* Batch.java */
+
+/**
+ *  The Batch class is a program that blurs and/or edge-detects many TIFF
+ *  files at once, without opening any windows, so it can run on machines
+ *  with no display.  It does the same work (and writes the same files) as the
+ *  Blur and Sobel programs, but on every TIFF file it is given, several files
+ *  at a time on a fixed-size pool of worker threads.
+ *
+ *  usage:  java Batch [options] path...
+ *
+ *  Each path is a TIFF file, a directory (every *.tif and *.tiff file in it),
+ *  or a glob pattern such as scans/*.tiff (quote it so the shell leaves it
+ *  alone).  Files whose names begin with blur_, edge_, or rle_ are skipped
+ *  when expanding directories and globs, since they are outputs of earlier
+ *  runs.  The options are
+ *
+ *      -blur n      perform n iterations of box blurring (default 0).
+ *      -radius r    blur with one box of radius r (see
+ *                   PixImage.boxBlurRadius()), after any iterations.
+ *      -gauss s     blur with an approximate Gaussian of standard deviation
+ *                   s (see PixImage.gaussianBlur()), after any box blurs.
+ *      -sobel       perform Sobel edge detection (after any blurring).
+ *      -rle         also write a run-length encoded edge image.
+ *      -threads n   process n files at a time (default:  number of cores).
+ *      -stream      stream each image a few rows at a time (see
+ *                   StripPipeline) instead of reading it into memory.
+ *                   Not available with -radius or -gauss.
+ *      -map         memory-map input files instead of reading them
+ *                   through a buffer.
+ *
+ *  Output files are written next to their inputs, with the prefixes blur_,
+ *  edge_, and rle_, exactly as Blur and Sobel name them.  One line is
+ *  printed per file as it finishes, and a summary with the aggregate
+ *  throughput in megapixels per second is printed at the end.  The exit
+ *  status is 1 if any file failed or any directory could not be read.
+ *
+ *  For example,
+ *
+ *         java Batch -blur 5 -sobel -threads 8 scans
+ *
+ *  blurs and edge-detects every TIFF file in the directory "scans".
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Batch {
+
+  private int numIterations = 0;
+  private int radius = 0;
+  private double sigma = 0.0;
+  private boolean sobel = false;
+  private boolean rle = false;
+  private boolean stream = false;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private final List<File> files = new ArrayList<File>();
+  private int unreadable = 0;
+
+  /**
+   *  Result records what happened to one input file.
+   */
+  private static class Result {
+    File file;
+    long pixels;
+    long nanos;
+    String error;
+  }
+
+  /**
+   *  isOutput() returns true if a file name looks like the output of Blur,
+   *  Sobel, or Batch.
+   */
+  private static boolean isOutput(String name) {
+    return name.startsWith("blur_") || name.startsWith("edge_") ||
+           name.startsWith("rle_");
+  }
+
+  /**
+   *  isTIFF() returns true if a file name has a TIFF extension.
+   */
+  private static boolean isTIFF(String name) {
+    String lower = name.toLowerCase();
+    return lower.endsWith(".tif") || lower.endsWith(".tiff");
+  }
+
+  /**
+   *  addPath() adds the TIFF files named by a command-line path:  a file,
+   *  a directory, or a glob pattern.
+   */
+  private void addPath(String path) {
+    File file = new File(path);
+    if (file.isDirectory()) {
+      File[] children = file.listFiles();
+      if (children == null) {
+        System.err.println("Cannot read the directory " + path + ".");
+        unreadable++;
+        return;
+      }
+      Arrays.sort(children);
+      for (File child : children) {
+        if (child.isFile() && isTIFF(child.getName()) &&
+            !isOutput(child.getName())) {
+          files.add(child);
+        }
+      }
+    } else if (path.indexOf('*') >= 0 || path.indexOf('?') >= 0 ||
+               path.indexOf('[') >= 0 || path.indexOf('{') >= 0) {
+      File dir = file.getParentFile() == null ? new File(".")
+                                              : file.getParentFile();
+      PathMatcher matcher =
+        FileSystems.getDefault().getPathMatcher("glob:" + file.getName());
+      File[] children = dir.listFiles();
+      if (children != null) {
+        Arrays.sort(children);
+        for (File child : children) {
+          if (child.isFile() && !isOutput(child.getName()) &&
+              matcher.matches(Paths.get(child.getName()))) {
+            files.add(child);
+          }
+        }
+      }
+    } else {
+      files.add(file);
+    }
+  }
+
+  /**
+   *  outputName() returns the name of an output file:  the input file name
+   *  with a prefix, in the input file's directory.
+   */
+  private static String outputName(File input, String prefix) {
+    return new File(input.getParentFile(), prefix + input.getName())
+           .getPath();
+  }
+
+  /**
+   *  blurring() returns true if any blur was requested.
+   */
+  private boolean blurring() {
+    return numIterations > 0 || radius > 0 || sigma > 0.0;
+  }
+
+  /**
+   *  process() performs the requested work on one file and reports how long
+   *  it took.  It never throws; failures are recorded in the Result.
+   */
+  private Result process(File input) {
+    Result result = new Result();
+    result.file = input;
+    long start = System.nanoTime();
+    try {
+      String name = input.getPath();
+      String blurname = outputName(input, "blur_");
+      String edgename = outputName(input, "edge_");
+      String rlename = rle ? outputName(input, "rle_") : null;
+
+      if (stream) {
+        TIFFDecoder decoder = StripPipeline.open(name);
+        result.pixels = (long) decoder.getWidth() * decoder.getHeight();
+        decoder.close();
+        if (sobel) {
+          StripPipeline.sobelFile(name, numIterations, blurname, edgename,
+                                  rlename);
+        } else {
+          StripPipeline.blurFile(name, numIterations, blurname);
+        }
+      } else {
+        PixImage image = ImageUtils.readTIFFPix(name);
+        result.pixels = (long) image.getWidth() * image.getHeight();
+        PixImage blurred = image.boxBlur(numIterations, null)
+                           .boxBlurRadius(radius, null)
+                           .gaussianBlur(sigma, null);
+        if (blurring()) {
+          TIFFEncoder.write(blurred, blurname);
+        }
+        if (sobel) {
+          PixImage edges = blurred.sobelEdges(null);
+          TIFFEncoder.write(edges, edgename);
+          if (rle) {
+            TIFFEncoder.write(new RunLengthEncoding(edges), rlename);
+          }
+        }
+      }
+    } catch (IOException e) {
+      result.error = e.getMessage();
+    } catch (RuntimeException e) {
+      result.error = e.toString();
+    }
+    result.nanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   *  run() processes every file on a pool of worker threads, printing a line
+   *  per file and a summary.
+   *
+   *  @return the number of files that failed.
+   */
+  private int run() throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<Result>> futures = new ArrayList<Future<Result>>();
+    long start = System.nanoTime();
+    for (final File file : files) {
+      futures.add(pool.submit(new Callable<Result>() {
+          public Result call() {
+            Result result = process(file);
+            synchronized (Batch.class) {
+              if (result.error == null) {
+                System.out.printf("%-40s %8.2f MP %9.1f ms %8.2f MP/s%n",
+                                  result.file.getPath(), result.pixels / 1e6,
+                                  result.nanos / 1e6,
+                                  result.pixels * 1e3 / result.nanos);
+              } else {
+                System.out.println(result.file.getPath() + "  FAILED:  " +
+                                   result.error);
+              }
+            }
+            return result;
+          }
+        }));
+    }
+    pool.shutdown();
+
+    long pixels = 0;
+    int done = 0, failed = 0;
+    for (Future<Result> future : futures) {
+      try {
+        Result result = future.get();
+        if (result.error == null) {
+          pixels += result.pixels;
+          done++;
+        } else {
+          failed++;
+        }
+      } catch (ExecutionException e) {
+        failed++;
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    System.out.printf("%d file(s) processed, %d failed, %.2f MP in %.1f s " +
+                      "on %d thread(s):  %.2f MP/s%n", done, failed,
+                      pixels / 1e6, nanos / 1e9, threads,
+                      pixels * 1e3 / Math.max(nanos, 1));
+    return failed;
+  }
+
+  /**
+   *  usage() prints the usage message and exits.
+   */
+  private static void usage() {
+    System.out.println("usage:  java Batch [-blur n] [-radius r] [-gauss s] " +
+                       "[-sobel] [-rle] [-threads n] [-stream] [-map] " +
+                       "path...");
+    System.out.println("  each path is a TIFF file, a directory, or a " +
+                       "quoted glob such as 'scans/*.tiff'.");
+    System.out.println("  -blur n     iterations of box blurring " +
+                       "(default 0).");
+    System.out.println("  -radius r   blur with one box of radius r.");
+    System.out.println("  -gauss s    blur with a Gaussian of standard " +
+                       "deviation s.");
+    System.out.println("  -sobel      perform Sobel edge detection.");
+    System.out.println("  -rle        also write a run-length encoded edge " +
+                       "image.");
+    System.out.println("  -threads n  files processed at a time " +
+                       "(default: number of cores).");
+    System.out.println("  -stream     process each image a few rows at " +
+                       "a time.");
+    System.out.println("  -map        memory-map input files.");
+    System.out.println("Outputs are written next to the inputs as " +
+                       "blur_*, edge_*, and rle_*.");
+    System.exit(0);
+  }
+
+  /**
+   *  parseCount() parses the numeric argument of an option, exiting with
+   *  an error message if it is missing or not a number.
+   */
+  private static int parseCount(String[] args, int i) {
+    if (i >= args.length) {
+      System.err.println(args[i - 1] + " must be followed by a number.");
+      System.exit(1);
+    }
+    try {
+      return Integer.parseInt(args[i]);
+    } catch (NumberFormatException ex) {
+      System.err.println(args[i - 1] + " must be followed by a number.");
+      System.exit(1);
+      return 0;
+    }
+  }
+
+  /**
+   *  parseSigma() parses the standard deviation after -gauss, exiting with
+   *  an error message if it is missing or not a number.
+   */
+  private static double parseSigma(String[] args, int i) {
+    if (i >= args.length) {
+      System.err.println(args[i - 1] + " must be followed by a number.");
+      System.exit(1);
+    }
+    try {
+      return Double.parseDouble(args[i]);
+    } catch (NumberFormatException ex) {
+      System.err.println(args[i - 1] + " must be followed by a number.");
+      System.exit(1);
+      return 0.0;
+    }
+  }
+
+  /**
+   *  main() reads the command-line arguments and processes the files.
+   *
+   *  @param args the usual array of command-line argument Strings.
+   */
+  public static void main(String[] args) throws InterruptedException {
+    System.setProperty("java.awt.headless", "true");
+    Batch batch = new Batch();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-blur")) {
+        batch.numIterations = parseCount(args, ++i);
+      } else if (args[i].equals("-radius")) {
+        batch.radius = parseCount(args, ++i);
+      } else if (args[i].equals("-gauss")) {
+        batch.sigma = parseSigma(args, ++i);
+      } else if (args[i].equals("-sobel")) {
+        batch.sobel = true;
+      } else if (args[i].equals("-rle")) {
+        batch.rle = true;
+      } else if (args[i].equals("-threads")) {
+        batch.threads = Math.max(1, parseCount(args, ++i));
+      } else if (args[i].equals("-stream")) {
+        batch.stream = true;
+      } else if (args[i].equals("-map")) {
+        ImageUtils.setMappedInput(true);
+      } else if (args[i].startsWith("-")) {
+        System.err.println("Unknown option " + args[i] + ".");
+        System.exit(1);
+      } else {
+        batch.addPath(args[i]);
+      }
+    }
+    if (batch.files.isEmpty() || (!batch.blurring() && !batch.sobel)) {
+      usage();
+    }
+    if (batch.stream && (batch.radius > 0 || batch.sigma > 0.0)) {
+      System.err.println("-radius and -gauss cannot be used with -stream.");
+      System.exit(1);
+    }
+    if (batch.rle && !batch.sobel) {
+      System.err.println("-rle requires -sobel.");
+      System.exit(1);
+    }
+
+    if (batch.run() + batch.unreadable > 0) {
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,658 @@
+/* Benchmarks.java */
+
+/**
+ *  The Benchmarks class is a program that times the operations we have
+ *  optimized, so changes to them can be measured before and after.
+ *
+ *  usage:  java Benchmarks [name...]
+ *
+ *  With no arguments it runs every benchmark; otherwise it runs the ones
+ *  whose names begin with one of the arguments.  Each benchmark is run once
+ *  to warm up the JIT compiler and then several more times, and the fastest
+ *  time per operation is reported.  The numbers are only meaningful relative
+ *  to each other on the same machine; run with a fixed heap (for example
+ *  -Xms1g -Xmx1g) to reduce noise.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class Benchmarks {
+
+  /**
+   *  The number of timed rounds of each benchmark.
+   */
+  private static final int ROUNDS = 5;
+
+  /**
+   *  Task is one benchmark.  run() performs the operation being measured
+   *  "reps" times.
+   */
+  private interface Task {
+    void run(int reps);
+  }
+
+  /**
+   *  time() runs a task once to warm up, then ROUNDS more times, and returns
+   *  the fastest time per repetition, in nanoseconds.
+   */
+  private static double time(Task task, int reps) {
+    task.run(reps);
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      task.run(reps);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return (double) best / reps;
+  }
+
+  /**
+   *  report() prints one result line.
+   */
+  private static void report(String name, double nanos, String unit) {
+    System.out.printf("%-36s %14.1f ns/%s%n", name, nanos, unit);
+  }
+
+  /**
+   *  stripes() returns a run-length encoding of a width x height image of
+   *  vertical stripes "stripe" pixels wide, alternating between two colors,
+   *  so it has about width * height / stripe runs.
+   */
+  private static RunLengthEncoding stripes(int width, int height,
+                                           int stripe) {
+    PixImage image = new PixImage(width, height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        short v = (short) ((x / stripe) % 2 == 0 ? 0 : 200);
+        image.setPixel(x, y, v, v, v);
+      }
+    }
+    return new RunLengthEncoding(image);
+  }
+
+  /**
+   *  benchmarkEdits() times random setPixel() calls on an encoding with
+   *  about 250,000 runs, with validation on (as every edit used to be) and
+   *  off, and the same edits applied as setPixels() batches.  A batch costs
+   *  one sweep over all the runs, so batches pay off when they are large or
+   *  when validation is on.
+   */
+  private static void benchmarkEdits() {
+    final int width = 1000, height = 1000;
+    final RunLengthEncoding rle = stripes(width, height, 4);
+    Random random = new Random(10);
+    final int count = 1 << 16;
+    final int[] xs = new int[count], ys = new int[count];
+    final short[] values = new short[count];
+    for (int i = 0; i < count; i++) {
+      xs[i] = random.nextInt(width);
+      ys[i] = random.nextInt(height);
+      values[i] = (short) (random.nextInt(2) * 200);
+    }
+
+    Task edits = new Task() {
+        int next = 0;
+        public void run(int reps) {
+          for (int i = 0; i < reps; i++) {
+            int k = next++ & (count - 1);
+            rle.setPixel(xs[k], ys[k], values[k], values[k], values[k]);
+          }
+        }
+      };
+    RunLengthEncoding.setValidation(true);
+    report("rle.setPixel (validated)", time(edits, 50), "edit");
+    RunLengthEncoding.setValidation(false);
+    report("rle.setPixel", time(edits, 20000), "edit");
+
+    final int batch = 8192;
+    Task batches = new Task() {
+        final int[] bx = new int[batch], by = new int[batch];
+        final short[] bv = new short[batch];
+        int next = 0;
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            for (int i = 0; i < batch; i++) {
+              int k = next++ & (count - 1);
+              bx[i] = xs[k];
+              by[i] = ys[k];
+              bv[i] = values[k];
+            }
+            rle.setPixels(bx, by, bv, bv, bv);
+          }
+        }
+      };
+    RunLengthEncoding.setValidation(true);
+    report("rle.setPixels (validated)", time(batches, 2) / batch, "edit");
+    RunLengthEncoding.setValidation(false);
+    report("rle.setPixels", time(batches, 2) / batch, "edit");
+  }
+
+  /**
+   *  readImage() reads a TIFF file into a PixImage with TIFFDecoder, or
+   *  returns null if it cannot be read.
+   */
+  private static PixImage readImage(String filename) {
+    try {
+      return TIFFDecoder.readPixImage(filename);
+    } catch (IOException e) {
+      System.out.println("Skipping " + filename + ":  " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   *  benchmarkEncode() times run-length encoding the photographs woman.tiff
+   *  and feathers.tiff (which have few long runs) and their edge images
+   *  (which have many).
+   */
+  private static void benchmarkEncode() {
+    String[] names = { "woman.tiff", "feathers.tiff" };
+    for (String name : names) {
+      PixImage photo = readImage(name);
+      if (photo == null) {
+        continue;
+      }
+      PixImage[] images = { photo, photo.sobelEdges(null) };
+      String[] labels = { name, "edges of " + name };
+      for (int i = 0; i < images.length; i++) {
+        final PixImage image = images[i];
+        Task encode = new Task() {
+            public void run(int reps) {
+              for (int r = 0; r < reps; r++) {
+                new RunLengthEncoding(image);
+              }
+            }
+          };
+        report("rle.encode " + labels[i],
+               time(encode, 200) / (image.getWidth() * image.getHeight()),
+               "pixel");
+      }
+    }
+  }
+
+  /**
+   *  benchmarkDecode() times toPixImage() on the encodings of woman.tiff,
+   *  feathers.tiff, and a large image of flat colored rectangles.
+   */
+  private static void benchmarkDecode() {
+    RunLengthEncoding flat = new RunLengthEncoding(2000, 2000);
+    flat.fillRect(100, 100, 1500, 800, (short) 200, (short) 30, (short) 30);
+    flat.fillRect(300, 1200, 1700, 700, (short) 90, (short) 90, (short) 90);
+    RunLengthEncoding[] encodings = { null, null, flat };
+    String[] labels = { "woman.tiff", "feathers.tiff", "flat 2000x2000" };
+    for (int i = 0; i < 2; i++) {
+      PixImage image = readImage(labels[i]);
+      if (image != null) {
+        encodings[i] = new RunLengthEncoding(image);
+      }
+    }
+    for (int i = 0; i < encodings.length; i++) {
+      final RunLengthEncoding rle = encodings[i];
+      if (rle == null) {
+        continue;
+      }
+      Task decode = new Task() {
+          public void run(int reps) {
+            for (int r = 0; r < reps; r++) {
+              rle.toPixImage();
+            }
+          }
+        };
+      int reps = rle.getWidth() * rle.getHeight() > 1000000 ? 5 : 100;
+      report("rle.decode " + labels[i],
+             time(decode, reps) / (rle.getWidth() * rle.getHeight()),
+             "pixel");
+    }
+  }
+
+  /**
+   *  benchmarkWrite() times writing a 2000x2000 photograph-like image to an
+   *  uncompressed TIFF file, and its edge image to a compressed one, with
+   *  strips packed on the writing thread and on the common pool.
+   */
+  private static void benchmarkWrite() {
+    final PixImage image = new PixImage(2000, 2000);
+    Random random = new Random(14);
+    byte[] row = new byte[2000 * 3];
+    for (int y = 0; y < 2000; y++) {
+      random.nextBytes(row);
+      image.setRow(y, row, 0);
+    }
+    final RunLengthEncoding edges =
+      new RunLengthEncoding(image.boxBlur(2, null).sobelEdges(null));
+    final String filename;
+    try {
+      File file = File.createTempFile("benchmark", ".tiff");
+      file.deleteOnExit();
+      filename = file.getPath();
+    } catch (IOException e) {
+      System.out.println("Skipping tiff.write:  " + e.getMessage());
+      return;
+    }
+
+    Task writePix = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            TIFFEncoder.writeTIFF(image, filename);
+          }
+        }
+      };
+    report("tiff.write uncompressed", time(writePix, 2) / (2000 * 2000),
+           "pixel");
+    Task writeRLE = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            TIFFEncoder.writeTIFF(edges, filename);
+          }
+        }
+      };
+    report("tiff.write compressed edges", time(writeRLE, 2) / (2000 * 2000),
+           "pixel");
+    TIFFEncoder.setCompressionPool(ForkJoinPool.commonPool());
+    report("tiff.write compressed edges (pool)",
+           time(writeRLE, 2) / (2000 * 2000), "pixel");
+    TIFFEncoder.setCompressionPool(null);
+  }
+
+  /**
+   *  benchmarkRead() times reading woman.tiff (uncompressed RGB) and the
+   *  compressed palette file written from its edges, through
+   *  ImageUtils.readTIFFPix() with and without memory-mapping, and through
+   *  ImageUtils.readTIFFRLE().
+   */
+  private static void benchmarkRead() {
+    PixImage image = readImage("woman.tiff");
+    if (image == null) {
+      return;
+    }
+    String[] filenames = new String[2];
+    try {
+      for (int i = 0; i < 2; i++) {
+        File file = File.createTempFile("benchmark", ".tiff");
+        file.deleteOnExit();
+        filenames[i] = file.getPath();
+      }
+    } catch (IOException e) {
+      System.out.println("Skipping tiff.read:  " + e.getMessage());
+      return;
+    }
+    TIFFEncoder.writeTIFF(image, filenames[0]);
+    TIFFEncoder.writeTIFF(new RunLengthEncoding(image.sobelEdges(null)),
+                          filenames[1]);
+    String[] labels = { "woman.tiff", "woman.tiff edges" };
+    for (int i = 0; i < 2; i++) {
+      final String filename = filenames[i];
+      Task read = new Task() {
+          public void run(int reps) {
+            for (int r = 0; r < reps; r++) {
+              ImageUtils.readTIFFPix(filename);
+            }
+          }
+        };
+      report("tiff.read " + labels[i],
+             time(read, 20) / (image.getWidth() * image.getHeight()),
+             "pixel");
+      ImageUtils.setMappedInput(true);
+      report("tiff.read " + labels[i] + " (mapped)",
+             time(read, 20) / (image.getWidth() * image.getHeight()),
+             "pixel");
+      ImageUtils.setMappedInput(false);
+      Task readRLE = new Task() {
+          public void run(int reps) {
+            for (int r = 0; r < reps; r++) {
+              ImageUtils.readTIFFRLE(filename);
+            }
+          }
+        };
+      report("tiff.read " + labels[i] + " (rle)",
+             time(readRLE, 20) / (image.getWidth() * image.getHeight()),
+             "pixel");
+    }
+  }
+
+  /**
+   *  benchmarkSerialize() times writing and reading back the encodings of
+   *  woman.tiff, its edges, and a mask of its edges with writeTo() and
+   *  readFrom(), and with a TIFF file, and prints the size of each.
+   */
+  private static void benchmarkSerialize() {
+    PixImage image = readImage("woman.tiff");
+    if (image == null) {
+      return;
+    }
+    final String filename;
+    try {
+      File file = File.createTempFile("benchmark", ".tiff");
+      file.deleteOnExit();
+      filename = file.getPath();
+    } catch (IOException e) {
+      System.out.println("Skipping rle.serialize:  " + e.getMessage());
+      return;
+    }
+    // A two-color mask of the strong edges, the kind of image an encoding is
+    // usually cached for.
+    PixImage edges = image.sobelEdges(null);
+    PixImage mask = new PixImage(image.getWidth(), image.getHeight());
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        short v = (short) (edges.getRed(x, y) > 64 ? 255 : 0);
+        mask.setPixel(x, y, v, v, v);
+      }
+    }
+    RunLengthEncoding[] encodings = { new RunLengthEncoding(image),
+                                      new RunLengthEncoding(edges),
+                                      new RunLengthEncoding(mask) };
+    String[] labels = { "woman.tiff", "woman.tiff edges", "woman.tiff mask" };
+    int pixels = image.getWidth() * image.getHeight();
+    for (int i = 0; i < encodings.length; i++) {
+      final RunLengthEncoding rle = encodings[i];
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      Task binary = new Task() {
+          public void run(int reps) {
+            try {
+              for (int r = 0; r < reps; r++) {
+                bytes.reset();
+                rle.writeTo(bytes, true);
+                RunLengthEncoding.readFrom(new BufferedInputStream(
+                  new ByteArrayInputStream(bytes.toByteArray())));
+              }
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      report("rle.serialize " + labels[i], time(binary, 20) / pixels,
+             "pixel");
+      Task tiff = new Task() {
+          public void run(int reps) {
+            for (int r = 0; r < reps; r++) {
+              TIFFEncoder.writeTIFF(rle, filename);
+              ImageUtils.readTIFFRLE(filename);
+            }
+          }
+        };
+      report("rle.serialize " + labels[i] + " (tiff)", time(tiff, 20) / pixels,
+             "pixel");
+      System.out.println("  " + bytes.size() + " bytes, or " +
+                         new File(filename).length() + " as TIFF");
+    }
+  }
+
+  /**
+   *  benchmarkFilter() times boxBlur() and sobelEdges() of a 2,000 x 2,000
+   *  mask of a disk, applied to the runs directly and by decoding to a
+   *  PixImage and encoding the result.
+   */
+  private static void benchmarkFilter() {
+    int size = 2000;
+    PixImage disk = new PixImage(size, size);
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        int dx = x - size / 2, dy = y - size / 2;
+        short v = (short) (dx * dx + dy * dy < size * size / 9 ? 255 : 0);
+        disk.setPixel(x, y, v, v, v);
+      }
+    }
+    final RunLengthEncoding rle = new RunLengthEncoding(disk);
+    int pixels = size * size;
+
+    Task blurRuns = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            rle.boxBlur(1);
+          }
+        }
+      };
+    report("rle.filter blur", time(blurRuns, 10) / pixels, "pixel");
+    Task blurPixels = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            new RunLengthEncoding(rle.toPixImage().boxBlur(1));
+          }
+        }
+      };
+    report("rle.filter blur (decoded)", time(blurPixels, 2) / pixels,
+           "pixel");
+    Task sobelRuns = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            rle.sobelEdges();
+          }
+        }
+      };
+    report("rle.filter sobel", time(sobelRuns, 10) / pixels, "pixel");
+    Task sobelPixels = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            new RunLengthEncoding(rle.toPixImage().sobelEdges(null));
+          }
+        }
+      };
+    report("rle.filter sobel (decoded)", time(sobelPixels, 2) / pixels,
+           "pixel");
+  }
+
+  /**
+   *  benchmarkWideBlur() times boxBlurRadius() on woman.tiff at several
+   *  radii, next to the boxBlur() iterations that blur about as widely
+   *  (n iterations have the variance of one box of radius sqrt(n / 1.5)),
+   *  and gaussianBlur().
+   */
+  private static void benchmarkWideBlur() {
+    final PixImage image = readImage("woman.tiff");
+    if (image == null) {
+      return;
+    }
+    int pixels = image.getWidth() * image.getHeight();
+    int[] radii = { 1, 4, 16 };
+    for (final int radius : radii) {
+      Task wide = new Task() {
+          public void run(int reps) {
+            for (int r = 0; r < reps; r++) {
+              image.boxBlurRadius(radius, null);
+            }
+          }
+        };
+      report("blur.radius " + radius, time(wide, 10) / pixels, "pixel");
+      final int iterations = (int) Math.round(1.5 * radius * radius);
+      Task repeated = new Task() {
+          public void run(int reps) {
+            for (int r = 0; r < reps; r++) {
+              image.boxBlur(iterations, null);
+            }
+          }
+        };
+      report("blur.radius " + radius + " (" + iterations + " iterations)",
+             time(repeated, 2) / pixels, "pixel");
+    }
+    Task gaussian = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            image.gaussianBlur(8.0, null);
+          }
+        }
+      };
+    report("blur.gaussian 8", time(gaussian, 5) / pixels, "pixel");
+  }
+
+  /**
+   *  benchmarkBlocked() times 16 iterations of boxBlur() on a random
+   *  3,000 x 2,000 image, much larger than any cache, with and without
+   *  temporal blocking.
+   */
+  private static void benchmarkBlocked() {
+    final int width = 3000, height = 2000, iterations = 16;
+    final byte[] pixels = new byte[width * height * 3];
+    new Random(23).nextBytes(pixels);
+    final boolean[] modes = { true, false };
+    for (final boolean blocked : modes) {
+      Task blur = new Task() {
+          public void run(int reps) {
+            for (int r = 0; r < reps; r++) {
+              BoxBlur.blur(pixels, width, height, iterations, null,
+                           LaneKernels.ENABLED, blocked);
+            }
+          }
+        };
+      report("blur.blocked" + (blocked ? "" : " (off)"),
+             time(blur, 1) / ((double) width * height * iterations),
+             "pixel");
+    }
+  }
+
+  /**
+   *  benchmarkRegion() times blurring and edge-detecting a 1,024 x 768
+   *  viewport of a random 4,000 x 3,000 image with the region methods and by
+   *  processing the whole image, and building the image's pyramid.
+   */
+  private static void benchmarkRegion() {
+    final int width = 4000, height = 3000;
+    byte[] pixels = new byte[width * height * 3];
+    new Random(24).nextBytes(pixels);
+    final PixImage image = new PixImage(width, height, pixels);
+
+    Task blurRegion = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            image.boxBlurRegion(3, 1500, 1100, 1024, 768);
+          }
+        }
+      };
+    report("region.blur", time(blurRegion, 5), "viewport");
+    Task blurWhole = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            image.boxBlur(3).crop(1500, 1100, 1024, 768);
+          }
+        }
+      };
+    report("region.blur (whole image)", time(blurWhole, 1), "viewport");
+    Task sobelRegion = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            image.sobelEdgesRegion(1500, 1100, 1024, 768);
+          }
+        }
+      };
+    report("region.sobel", time(sobelRegion, 5), "viewport");
+    Task sobelWhole = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            image.sobelEdges().crop(1500, 1100, 1024, 768);
+          }
+        }
+      };
+    report("region.sobel (whole image)", time(sobelWhole, 1), "viewport");
+    Task pyramid = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            image.pyramid(32);
+          }
+        }
+      };
+    report("region.pyramid", time(pyramid, 1), "image");
+  }
+
+  /**
+   *  benchmarkEdgeMap() times bringing the edges of a random 2,000 x 2,000
+   *  image up to date after ten scattered one-pixel edits, with an EdgeMap
+   *  and by running sobelEdges() again.
+   */
+  private static void benchmarkEdgeMap() {
+    final int width = 2000, height = 2000;
+    byte[] pixels = new byte[width * height * 3];
+    final Random random = new Random(25);
+    random.nextBytes(pixels);
+    final PixImage image = new PixImage(width, height, pixels);
+    final EdgeMap edges = new EdgeMap(image);
+
+    Task incremental = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            for (int k = 0; k < 10; k++) {
+              short v = (short) random.nextInt(256);
+              edges.setPixel(random.nextInt(width), random.nextInt(height),
+                             v, v, v);
+            }
+            edges.getEdges();
+          }
+        }
+      };
+    report("edges.incremental", time(incremental, 1000), "10 edits");
+    Task full = new Task() {
+        public void run(int reps) {
+          for (int r = 0; r < reps; r++) {
+            for (int k = 0; k < 10; k++) {
+              short v = (short) random.nextInt(256);
+              image.setPixel(random.nextInt(width), random.nextInt(height),
+                             v, v, v);
+            }
+            image.sobelEdges();
+          }
+        }
+      };
+    report("edges.incremental (whole image)", time(full, 1), "10 edits");
+  }
+
+  /**
+   *  main() runs the benchmarks named on the command line, or all of them.
+   *
+   *  @param args the names, or prefixes of names, of benchmarks to run.
+   */
+  public static void main(String[] args) {
+    if (selected(args, "rle.edit")) {
+      benchmarkEdits();
+    }
+    if (selected(args, "rle.encode")) {
+      benchmarkEncode();
+    }
+    if (selected(args, "rle.decode")) {
+      benchmarkDecode();
+    }
+    if (selected(args, "tiff.write")) {
+      benchmarkWrite();
+    }
+    if (selected(args, "tiff.read")) {
+      benchmarkRead();
+    }
+    if (selected(args, "rle.serialize")) {
+      benchmarkSerialize();
+    }
+    if (selected(args, "rle.filter")) {
+      benchmarkFilter();
+    }
+    if (selected(args, "blur.radius")) {
+      benchmarkWideBlur();
+    }
+    if (selected(args, "blur.blocked")) {
+      benchmarkBlocked();
+    }
+    if (selected(args, "region.blur")) {
+      benchmarkRegion();
+    }
+    if (selected(args, "edges.incremental")) {
+      benchmarkEdgeMap();
+    }
+  }
+
+  /**
+   *  selected() returns true if a benchmark should run.
+   */
+  private static boolean selected(String[] args, String name) {
+    if (args.length == 0) {
+      return true;
+    }
+    for (String arg : args) {
+      if (name.startsWith(arg)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -24,6 +24,11 @@
  *  then Blur will read engine.tiff, perform 5 iterations of blurring, and
  *  write the blurred image to blur_engine.tiff .
  *
+ *  If the first parameter is "-stream", the remaining parameters are the same,
+ *  but the image is streamed through the blur a few rows at a time (see
+ *  StripPipeline) instead of being read into memory, and nothing is
+ *  displayed.  Use this for images too large to fit in memory.
+ *
  *  @author Joel Galenson and Jonathan Shewchuk
  */
 
@@ -55,21 +60,47 @@ public class Blur {
     ImageUtils.displayTIFFs(new PixImage[] { image, blurred });
   }
 
+  /**
+   *  streamFile() blurs a TIFF image file a few rows at a time and writes the
+   *  blurred image to a new TIFF image file, without displaying anything.
+   *
+   *  @param filename the name of the input TIFF image file.
+   *  @param numIterations the number of iterations of blurring to perform.
+   */
+  private static void streamFile(String filename, int numIterations) {
+    String blurname = "blur_" + filename;
+    System.out.println("Streaming " + filename + " through " + numIterations +
+                       " blur iteration(s) into " + blurname);
+    try {
+      StripPipeline.blurFile(filename, numIterations, blurname);
+    } catch (java.io.IOException e) {
+      System.err.println("Cannot stream " + filename + ":  " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
   /**
    *  main() reads the command-line arguments and initiates the blurring.
    *
-   *  The first command-line argument is the name of the image file.
-   *  An optional second argument is number of iterations of blurring.
+   *  An optional first argument "-stream" selects streaming mode.
+   *  The next command-line argument is the name of the image file.
+   *  An optional last argument is number of iterations of blurring.
    *
    *  @param args the usual array of command-line argument Strings.
    */
   public static void main(String[] args) {
+    boolean stream = args.length > 0 && args[0].equals("-stream");
+    if (stream) {
+      args = java.util.Arrays.copyOfRange(args, 1, args.length);
+    }
     if (args.length == 0) {
-      System.out.println("usage:  java Blur imagefile [iterations]");
+      System.out.println("usage:  java Blur [-stream] imagefile [iterations]");
       System.out.println("  imagefile is an image in TIFF format.");
       System.out.println("  interations is the number of blurring iterations" +
                          " (default 1).");
       System.out.println("The blurred image is written to blur_imagefile.");
+      System.out.println("-stream processes the image a few rows at a time " +
+                         "and does not display it.");
       System.exit(0);
     }
 
@@ -83,6 +114,10 @@ public class Blur {
       }
     }
 
-    blurFile(args[0], numIterations);
+    if (stream) {
+      streamFile(args[0], numIterations);
+    } else {
+      blurFile(args[0], numIterations);
+    }
   }
 }
@@ -0,0 +1,305 @@
+/* BoxBlur.java */
+
+/**
+ *  The BoxBlur class implements the 3x3 box blur behind PixImage.boxBlur().
+ *  It works directly on PixImage's interleaved row-major pixel buffer, where
+ *  each row is width * 3 bytes and every byte is one color "lane."
+ *
+ *  The 3x3 sum is separable:  each input row is reduced once to horizontal
+ *  three-pixel sums, and each output row adds the horizontal sums of the rows
+ *  above, at, and below it.  Every horizontal sum is therefore reused by three
+ *  output rows instead of being recomputed for each of nine taps.  Boundary
+ *  rows and columns are handled outside the inner loops, so no per-tap bounds
+ *  check is needed.  The result is identical to averaging the valid neighbors
+ *  of each pixel with Java's truncating integer division.
+ *
+ *  Multiple iterations ping-pong between two preallocated buffers.  They may
+ *  also be temporally blocked:  the image is cut into bands of rows, and each
+ *  band is copied, together with a halo of k rows above and below it, into
+ *  a pair of tiles small enough to stay in cache.  k iterations are run on
+ *  the tiles, each computing one row less of halo on either side than the
+ *  last (the outermost rows of the halo are wrong, since their neighbors were
+ *  not copied, but only rows the next iteration needs are computed), and
+ *  then the band is copied out.  So k iterations cost one trip through memory
+ *  instead of k, in exchange for recomputing parts of the halos.
+ *
+ *  Blocking pays off only where the blur is limited by memory bandwidth, as
+ *  when many cores share it; a single core is limited by arithmetic and runs
+ *  no faster.  So it is off unless the system property piximage.blocking is
+ *  "on".  The output is identical either way.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+class BoxBlur {
+
+  /**
+   *  BLOCKED is true if blurs of several iterations are temporally blocked.
+   */
+  static final boolean BLOCKED =
+    "on".equals(System.getProperty("piximage.blocking"));
+
+  /**
+   *  horizontalSums() stores in sums[i] the sum of lane i of a row and the
+   *  same lane of the pixels to its left and right (where they exist).
+   *
+   *  @param src the buffer holding the row.
+   *  @param offset the index in src where the row begins.
+   *  @param width the number of pixels in the row.
+   *  @param sums the array that receives width * 3 horizontal sums.
+   */
+  static void horizontalSums(byte[] src, int offset, int width, int[] sums) {
+    int lanes = width * 3;
+    if (width == 1) {
+      for (int c = 0; c < 3; c++) {
+        sums[c] = src[offset + c] & 0xff;
+      }
+      return;
+    }
+
+    for (int c = 0; c < 3; c++) {
+      sums[c] = (src[offset + c] & 0xff) + (src[offset + c + 3] & 0xff);
+      sums[lanes - 3 + c] = (src[offset + lanes - 6 + c] & 0xff) +
+                            (src[offset + lanes - 3 + c] & 0xff);
+    }
+    for (int i = 3; i < lanes - 3; i++) {
+      sums[i] = (src[offset + i - 3] & 0xff) + (src[offset + i] & 0xff) +
+                (src[offset + i + 3] & 0xff);
+    }
+  }
+
+  /**
+   *  averageRow() adds the horizontal sums of three consecutive rows and
+   *  writes the truncated averages to one output row.  At the top or bottom
+   *  of the image the missing row is passed as an array of zeros, and "rows"
+   *  tells how many of the three rows really exist.
+   *
+   *  @param above horizontal sums of the row above (or zeros).
+   *  @param current horizontal sums of the row itself.
+   *  @param below horizontal sums of the row below (or zeros).
+   *  @param rows the number of rows that exist (1, 2, or 3).
+   *  @param dst the buffer that receives the output row.
+   *  @param offset the index in dst where the output row begins.
+   *  @param width the number of pixels in the row.
+   */
+  static void averageRow(int[] above, int[] current, int[] below, int rows,
+                         byte[] dst, int offset, int width) {
+    int lanes = width * 3;
+    int edgeCount = (width == 1 ? 1 : 2) * rows;
+    int innerCount = 3 * rows;
+
+    for (int c = 0; c < 3; c++) {
+      dst[offset + c] =
+        (byte) ((above[c] + current[c] + below[c]) / edgeCount);
+      int i = lanes - 3 + c;
+      dst[offset + i] =
+        (byte) ((above[i] + current[i] + below[i]) / edgeCount);
+    }
+    for (int i = 3; i < lanes - 3; i++) {
+      dst[offset + i] =
+        (byte) ((above[i] + current[i] + below[i]) / innerCount);
+    }
+  }
+
+  /**
+   *  blurRows() computes output rows y0...y1 - 1 of one blur iteration from
+   *  the whole source image.  Rows outside that range are neither read beyond
+   *  the one-row halo nor written, so disjoint row ranges may be computed
+   *  independently.
+   *
+   *  @param src the source image buffer.
+   *  @param dst the destination image buffer (must not be src).
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param y0 the first output row.
+   *  @param y1 one past the last output row.
+   */
+  static void blurRows(byte[] src, byte[] dst, int width, int height,
+                       int y0, int y1) {
+    blurRows(src, dst, width, height, y0, y1, LaneKernels.ENABLED);
+  }
+
+  /**
+   *  blurRows() is the same as above, but uses the lane kernels of
+   *  LaneKernels if "lanes" is true and the scalar kernel otherwise.
+   */
+  static void blurRows(byte[] src, byte[] dst, int width, int height,
+                       int y0, int y1, boolean lanes) {
+    blurRows(src, dst, width, height, y0, y1, lanes, new int[4][width * 3]);
+  }
+
+  /**
+   *  blurRows() is the same as above, but keeps its horizontal sums in
+   *  "scratch", four arrays of at least width * 3 ints (the last of which
+   *  must be zeros), so a caller that blurs many ranges allocates them once.
+   */
+  private static void blurRows(byte[] src, byte[] dst, int width, int height,
+                               int y0, int y1, boolean lanes,
+                               int[][] scratch) {
+    if (y0 >= y1 || width == 0) {
+      return;
+    }
+    int rowLength = width * 3;
+    int[] above = scratch[0];
+    int[] current = scratch[1];
+    int[] below = scratch[2];
+    int[] zeros = scratch[3];
+
+    if (y0 > 0) {
+      horizontalSums(src, (y0 - 1) * rowLength, width, above);
+    }
+    horizontalSums(src, y0 * rowLength, width, current);
+
+    for (int y = y0; y < y1; y++) {
+      if (y + 1 < height) {
+        horizontalSums(src, (y + 1) * rowLength, width, below);
+      }
+      int rows = 1 + (y > 0 ? 1 : 0) + (y + 1 < height ? 1 : 0);
+      int[] top = y > 0 ? above : zeros;
+      int[] bottom = y + 1 < height ? below : zeros;
+      if (lanes) {
+        LaneKernels.averageRow(top, current, bottom, rows, dst, y * rowLength,
+                               width);
+      } else {
+        averageRow(top, current, bottom, rows, dst, y * rowLength, width);
+      }
+      int[] recycled = above;
+      above = current;
+      current = below;
+      below = recycled;
+    }
+  }
+
+  /**
+   *  blur() performs numIterations iterations of box blurring on an image
+   *  buffer without modifying it.  If pool is not null, each iteration is
+   *  split into bands of rows blurred in parallel; all bands finish before
+   *  the next iteration starts.
+   *
+   *  @param pixels the interleaved row-major buffer of the input image.
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param numIterations the number of iterations (at least one).
+   *  @param pool the pool to run on, or null to run sequentially.
+   *  @return a new buffer holding the blurred image.
+   */
+  static byte[] blur(byte[] pixels, int width, int height,
+                     int numIterations, ForkJoinPool pool) {
+    return blur(pixels, width, height, numIterations, pool,
+                LaneKernels.ENABLED);
+  }
+
+  /**
+   *  blur() is the same as above, but uses the lane kernels of LaneKernels
+   *  if "lanes" is true and the scalar kernel otherwise.
+   */
+  static byte[] blur(byte[] pixels, int width, int height,
+                     int numIterations, ForkJoinPool pool, boolean lanes) {
+    return blur(pixels, width, height, numIterations, pool, lanes, BLOCKED);
+  }
+
+  /**
+   *  blur() is the same as above, but temporally blocks the iterations only
+   *  if "blocked" is true.
+   */
+  static byte[] blur(byte[] pixels, final int width, final int height,
+                     int numIterations, ForkJoinPool pool,
+                     final boolean lanes, boolean blocked) {
+    if (blocked && numIterations > 1 && width > 0 &&
+        fusedIterations(width) > 1) {
+      return blurBlocked(pixels, width, height, numIterations, pool, lanes);
+    }
+    byte[] src = pixels;
+    byte[] dst = new byte[pixels.length];
+    byte[] spare = numIterations > 1 ? new byte[pixels.length] : null;
+
+    for (int i = 0; i < numIterations; i++) {
+      final byte[] from = src, to = dst;
+      RowBands.run(pool, height, new RowBands.Kernel() {
+        public void run(int y0, int y1) {
+          blurRows(from, to, width, height, y0, y1, lanes);
+        }
+      });
+      dst = (src == pixels) ? spare : src;
+      src = to;
+    }
+    return src;
+  }
+
+  /**
+   *  The size of the pair of tiles that one band of a blocked blur works in,
+   *  chosen to fit with room to spare in a typical per-core (L2) cache.
+   */
+  private static final int TILE_BYTES = 1 << 20;
+
+  /**
+   *  fusedIterations() returns how many iterations a blocked blur runs on
+   *  each band at a time, for an image of the given width.  A band has at
+   *  least six times as many rows as its halo is high, so no more than about
+   *  a sixth of the work is recomputation.
+   */
+  private static int fusedIterations(int width) {
+    return TILE_BYTES / (2 * width * 3) / 8;
+  }
+
+  /**
+   *  blurBlocked() performs numIterations iterations of box blurring, fusing
+   *  up to fusedIterations() of them per band as described above.
+   */
+  private static byte[] blurBlocked(byte[] pixels, final int width,
+                                    final int height, int numIterations,
+                                    ForkJoinPool pool, final boolean lanes) {
+    int fused = fusedIterations(width);
+    final int tileRows = TILE_BYTES / (2 * width * 3);
+    byte[] src = pixels;
+    byte[] dst = new byte[pixels.length];
+    byte[] spare = numIterations > fused ? new byte[pixels.length] : null;
+
+    for (int i = 0; i < numIterations; i += fused) {
+      final int k = Math.min(fused, numIterations - i);
+      final byte[] from = src, to = dst;
+      RowBands.run(pool, height, new RowBands.Kernel() {
+        public void run(int y0, int y1) {
+          blurBands(from, to, width, height, y0, y1, k, tileRows - 2 * k,
+                    lanes);
+        }
+      });
+      dst = (src == pixels) ? spare : src;
+      src = to;
+    }
+    return src;
+  }
+
+  /**
+   *  blurBands() computes rows y0...y1 - 1 of k iterations of box blurring,
+   *  "band" rows at a time.  Like blurRows(), it reads only the source
+   *  (here, k rows beyond the range) and writes only its own rows.
+   */
+  private static void blurBands(byte[] src, byte[] dst, int width, int height,
+                                int y0, int y1, int k, int band,
+                                boolean lanes) {
+    int rowLength = width * 3;
+    int tileRows = Math.min(Math.min(band, y1 - y0) + 2 * k, height);
+    byte[] tile = new byte[tileRows * rowLength];
+    byte[] next = new byte[tileRows * rowLength];
+    int[][] scratch = new int[4][rowLength];
+
+    for (int b0 = y0; b0 < y1; b0 += band) {
+      int b1 = Math.min(b0 + band, y1);
+      // The tile holds rows t0...t1 - 1.  Where it reaches the top or bottom
+      // of the image, its edge is the image's, so blurRows() treats it right.
+      int t0 = Math.max(b0 - k, 0), t1 = Math.min(b1 + k, height);
+      System.arraycopy(src, t0 * rowLength, tile, 0, (t1 - t0) * rowLength);
+      for (int j = k - 1; j >= 0; j--) {
+        // This iteration computes the rows that the remaining j need.
+        blurRows(tile, next, width, t1 - t0, Math.max(b0 - j, 0) - t0,
+                 Math.min(b1 + j, height) - t0, lanes, scratch);
+        byte[] recycled = tile;
+        tile = next;
+        next = recycled;
+      }
+      System.arraycopy(tile, (b0 - t0) * rowLength, dst, b0 * rowLength,
+                       (b1 - b0) * rowLength);
+    }
+  }
+}
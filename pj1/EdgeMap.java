@@ -0,0 +1,292 @@
+/* EdgeMap.java */
+
+/**
+ *  The EdgeMap class keeps the Sobel edge image of a PixImage or
+ *  RunLengthEncoding up to date as pixels of the source are edited, without
+ *  rerunning sobelEdges() over the whole image after every edit.
+ *
+ *  Each output pixel of the Sobel operator depends only on the 3x3
+ *  neighborhood around it, so changing a source pixel can change only the
+ *  nine edge pixels centered on it.  An EdgeMap remembers which rectangles of
+ *  the source have changed since the edge image was last brought up to date.
+ *  getEdges() recomputes just those rectangles, each widened by one pixel,
+ *  reading a one-pixel halo of the source around them, so the cost is
+ *  proportional to the area edited rather than the area of the image.
+ *
+ *  Edit the source through setPixel(), or edit it directly and then call
+ *  markDirty() with the pixels changed.  Dirty rectangles whose recomputed
+ *  areas would touch are merged, and if there are ever more than
+ *  MAX_RECTANGLES, or their area reaches a quarter of the image, the whole
+ *  edge image is simply recomputed.
+ *
+ *  The edge image is always exactly what sobelEdges() of the source would
+ *  return.
+ */
+
+public class EdgeMap {
+
+  /**
+   *  The largest number of separate dirty rectangles that are tracked.
+   */
+  private static final int MAX_RECTANGLES = 64;
+
+  private final PixImage image;
+  private final RunLengthEncoding rle;
+  private final int width, height;
+  private PixImage edges;
+
+  /**
+   *  dirty holds the dirty rectangles of the source, four ints each:  the
+   *  left column, top row, and one past the right column and bottom row.
+   */
+  private int[] dirty = new int[4 * 8];
+  private int dirtyCount;
+
+  /**
+   *  EdgeMap() creates an edge map of a PixImage, computing its edge image.
+   *
+   *  @param image the source image, which may be edited afterward.
+   */
+  public EdgeMap(PixImage image) {
+    this.image = image;
+    this.rle = null;
+    width = image.getWidth();
+    height = image.getHeight();
+    edges = image.sobelEdges();
+  }
+
+  /**
+   *  EdgeMap() creates an edge map of a run-length encoding, computing its
+   *  edge image.
+   *
+   *  @param rle the source encoding, which may be edited afterward.
+   */
+  public EdgeMap(RunLengthEncoding rle) {
+    this.image = null;
+    this.rle = rle;
+    width = rle.getWidth();
+    height = rle.getHeight();
+    edges = rle.sobelEdges().toPixImage();
+  }
+
+  /**
+   *  setPixel() sets a pixel of the source, exactly as its own setPixel()
+   *  does, and marks the pixel dirty.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   *  @param red the new red intensity.
+   *  @param green the new green intensity.
+   *  @param blue the new blue intensity.
+   */
+  public void setPixel(int x, int y, short red, short green, short blue) {
+    if (image != null) {
+      image.setPixel(x, y, red, green, blue);
+    } else {
+      rle.setPixel(x, y, red, green, blue);
+    }
+    markDirty(x, y, 1, 1);
+  }
+
+  /**
+   *  markDirty() records that pixel (x, y) of the source has been changed
+   *  directly.
+   *
+   *  @param x the x-coordinate of the pixel.
+   *  @param y the y-coordinate of the pixel.
+   */
+  public void markDirty(int x, int y) {
+    markDirty(x, y, 1, 1);
+  }
+
+  /**
+   *  markDirty() records that the rectangle of the source with top left
+   *  corner (x, y) and the given width and height has been changed directly.
+   *  Parts of the rectangle outside the image are ignored.
+   *
+   *  @param x the x-coordinate of the left column of the rectangle.
+   *  @param y the y-coordinate of the top row of the rectangle.
+   *  @param w the width of the rectangle.
+   *  @param h the height of the rectangle.
+   */
+  public void markDirty(int x, int y, int w, int h) {
+    int x0 = Math.max(x, 0), y0 = Math.max(y, 0);
+    int x1 = (int) Math.min((long) x + w, width);
+    int y1 = (int) Math.min((long) y + h, height);
+    if (x0 >= x1 || y0 >= y1) {
+      return;
+    }
+
+    // Rectangles less than two pixels apart recompute overlapping edge
+    // pixels, so they are merged.  A merge can make the rectangle touch
+    // others it did not before, so the search starts over after each one.
+    for (int i = 0; i < dirtyCount; i++) {
+      int r = 4 * i;
+      if (x0 < dirty[r + 2] + 2 && dirty[r] < x1 + 2 &&
+          y0 < dirty[r + 3] + 2 && dirty[r + 1] < y1 + 2) {
+        x0 = Math.min(x0, dirty[r]);
+        y0 = Math.min(y0, dirty[r + 1]);
+        x1 = Math.max(x1, dirty[r + 2]);
+        y1 = Math.max(y1, dirty[r + 3]);
+        dirtyCount--;
+        System.arraycopy(dirty, 4 * dirtyCount, dirty, r, 4);
+        i = -1;
+      }
+    }
+
+    if (dirtyCount == MAX_RECTANGLES) {
+      // Too many to track; keep their bounding box instead.
+      for (int r = 0; r < 4 * dirtyCount; r += 4) {
+        x0 = Math.min(x0, dirty[r]);
+        y0 = Math.min(y0, dirty[r + 1]);
+        x1 = Math.max(x1, dirty[r + 2]);
+        y1 = Math.max(y1, dirty[r + 3]);
+      }
+      dirtyCount = 0;
+    }
+    if (4 * dirtyCount == dirty.length) {
+      dirty = java.util.Arrays.copyOf(dirty, 2 * dirty.length);
+    }
+    int r = 4 * dirtyCount++;
+    dirty[r] = x0;
+    dirty[r + 1] = y0;
+    dirty[r + 2] = x1;
+    dirty[r + 3] = y1;
+  }
+
+  /**
+   *  isDirty() returns true if the source has changed since the edge image
+   *  was last brought up to date.
+   *
+   *  @return true if getEdges() has work to do.
+   */
+  public boolean isDirty() {
+    return dirtyCount > 0;
+  }
+
+  /**
+   *  crop() decodes a rectangle of the source.
+   */
+  private PixImage crop(int x, int y, int w, int h) {
+    return image != null ? image.crop(x, y, w, h) : rle.crop(x, y, w, h);
+  }
+
+  /**
+   *  getEdges() brings the edge image up to date with the source and returns
+   *  it.  The same PixImage is returned (and patched in place) every time
+   *  unless the whole edge image has to be recomputed, so do not modify it.
+   *
+   *  @return the grayscale edge image of the source.
+   */
+  public PixImage getEdges() {
+    if (dirtyCount == 0) {
+      return edges;
+    }
+
+    long area = 0;
+    for (int r = 0; r < 4 * dirtyCount; r += 4) {
+      area += (long) (dirty[r + 2] - dirty[r] + 2) *
+              (dirty[r + 3] - dirty[r + 1] + 2);
+    }
+    if (4 * area >= (long) width * height) {
+      edges = image != null ? image.sobelEdges()
+                            : rle.sobelEdges().toPixImage();
+      dirtyCount = 0;
+      return edges;
+    }
+
+    for (int r = 0; r < 4 * dirtyCount; r += 4) {
+      // The edge pixels to recompute, and the source pixels they read.
+      int ox0 = Math.max(dirty[r] - 1, 0);
+      int oy0 = Math.max(dirty[r + 1] - 1, 0);
+      int ox1 = Math.min(dirty[r + 2] + 1, width);
+      int oy1 = Math.min(dirty[r + 3] + 1, height);
+      int ix0 = Math.max(ox0 - 1, 0), iy0 = Math.max(oy0 - 1, 0);
+      int ix1 = Math.min(ox1 + 1, width), iy1 = Math.min(oy1 + 1, height);
+      // Where the crop stops short of the image's edge, the pixels next to
+      // the crop's edge are not recomputed, so clamping there does no harm.
+      PixImage source = crop(ix0, iy0, ix1 - ix0, iy1 - iy0);
+      edges.paste(source.sobelEdgesRegion(ox0 - ix0, oy0 - iy0, ox1 - ox0,
+                                          oy1 - oy0), ox0, oy0);
+    }
+    dirtyCount = 0;
+    return edges;
+  }
+
+  /**
+   * TEST CODE:  YOU DO NOT NEED TO FILL IN ANY METHODS BELOW THIS POINT.
+   */
+
+  /**
+   *  doTest() checks whether the condition is true and prints the given error
+   *  message if it is not.
+   *
+   *  @param b the condition to check.
+   *  @param msg the error message to print if the condition is false.
+   */
+  private static void doTest(boolean b, String msg) {
+    if (b) {
+      System.out.println("Good.");
+    } else {
+      System.err.println(msg);
+    }
+  }
+
+  /**
+   *  main() runs test cases on the EdgeMap class.  Prints summary
+   *  information on basic operations and halts with an error (and a stack
+   *  trace) if any of the tests fail.
+   */
+  public static void main(String[] args) {
+    java.util.Random random = new java.util.Random(25);
+    PixImage image = new PixImage(57, 43);
+    for (int x = 0; x < 57; x++) {
+      for (int y = 0; y < 43; y++) {
+        image.setPixel(x, y, (short) random.nextInt(256),
+                       (short) random.nextInt(256),
+                       (short) random.nextInt(256));
+      }
+    }
+    RunLengthEncoding rle = new RunLengthEncoding(image.crop(0, 0, 57, 43));
+    EdgeMap imageMap = new EdgeMap(image);
+    EdgeMap rleMap = new EdgeMap(rle);
+
+    System.out.println("Testing an edge map after single-pixel edits, " +
+                       "including corners.");
+    int[][] points = { { 0, 0 }, { 56, 42 }, { 56, 0 }, { 20, 20 },
+                       { 21, 21 }, { 40, 5 } };
+    for (int[] p : points) {
+      short v = (short) random.nextInt(256);
+      imageMap.setPixel(p[0], p[1], v, (short) 0, (short) 255);
+      rleMap.setPixel(p[0], p[1], v, (short) 0, (short) 255);
+    }
+    doTest(imageMap.isDirty() && imageMap.getEdges()
+           .equals(image.sobelEdges()) && !imageMap.isDirty(),
+           "Edge map of a PixImage differs from sobelEdges().");
+    doTest(rleMap.getEdges().equals(rle.toPixImage().sobelEdges()),
+           "Edge map of an encoding differs from sobelEdges().");
+
+    System.out.println("Testing an edge map after direct edits of " +
+                       "scattered pixels and rectangles.");
+    for (int k = 0; k < 200; k++) {
+      int x = random.nextInt(57), y = random.nextInt(43);
+      int w = k % 10 == 0 ? 1 + random.nextInt(15) : 1;
+      int h = k % 10 == 0 ? 1 + random.nextInt(15) : 1;
+      short v = (short) random.nextInt(256);
+      rle.fillRect(x, y, w, h, v, v, (short) 0);
+      rleMap.markDirty(x, y, w, h);
+      for (int i = x; i < Math.min(x + w, 57); i++) {
+        for (int j = y; j < Math.min(y + h, 43); j++) {
+          image.setPixel(i, j, v, v, (short) 0);
+        }
+      }
+      imageMap.markDirty(x, y, w, h);
+      if (k % 40 == 39) {
+        doTest(imageMap.getEdges().equals(image.sobelEdges()) &&
+               rleMap.getEdges().equals(rle.toPixImage().sobelEdges()),
+               "Edge map differs from sobelEdges() after " + (k + 1) +
+               " edits.");
+      }
+    }
+  }
+}
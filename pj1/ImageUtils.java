@@ -16,10 +16,10 @@
  *  @author Joel Galenson
  **/
 
-import java.awt.Color;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 
 import javax.media.jai.JAI;
 import javax.media.jai.RenderedImageAdapter;
@@ -31,26 +31,57 @@ import javax.swing.JLabel;
 /**
  *  ImageUtils contains utilities for reading, writing, and displaying images.
  * 
- *  It uses JAI to read and write TIFF files, as the standard libraries cannot
- *  read them.
+ *  It reads TIFF files with TIFFDecoder, falling back on JAI for layouts that
+ *  TIFFDecoder does not handle, and uses JAI to write them, as the standard
+ *  libraries cannot read or write them.
  * 
  *  All image data is in RGB format (see BufferedImage.getRGB).
  */
 public class ImageUtils {
 
+  /**
+   *  mappedInput is true if TIFF files are read by memory-mapping them.
+   */
+  private static volatile boolean mappedInput;
+
+  /**
+   *  setMappedInput() chooses how TIFF files are read from now on:  by
+   *  memory-mapping them, which saves a copy of every strip and suits very
+   *  large files, or (the default) through a buffer.  The pixels read are
+   *  the same either way.  StripPipeline follows the same choice.
+   *  @param mapped true to memory-map TIFF files.
+   */
+  public static void setMappedInput(boolean mapped) {
+    mappedInput = mapped;
+  }
+
+  /**
+   *  isMappedInput() returns true if TIFF files are read by memory-mapping
+   *  them.
+   *  @return true if TIFF files are memory-mapped.
+   */
+  static boolean isMappedInput() {
+    return mappedInput;
+  }
+
   /**
    *  buffer2PixImage() converts a BufferedImage to a PixImage.
    *  @param bImage the image to convert.
    *  @return a PixImage with the same pixels as the BufferedImage.
    */
   private static PixImage buffer2PixImage(BufferedImage bImage) {
-    PixImage pImage = new PixImage(bImage.getWidth(), bImage.getHeight());
-    for (int x = 0; x < bImage.getWidth(); x++) {
-      for (int y = 0; y < bImage.getHeight(); y++) {
-        Color color = new Color(bImage.getRGB(x, y));
-        pImage.setPixel(x, y, (short) color.getRed(), (short) color.getGreen(),
-                        (short) color.getBlue());
+    int width = bImage.getWidth();
+    PixImage pImage = new PixImage(width, bImage.getHeight());
+    int[] rgb = new int[width];
+    byte[] row = new byte[width * 3];
+    for (int y = 0; y < bImage.getHeight(); y++) {
+      bImage.getRGB(0, y, width, 1, rgb, 0, width);
+      for (int x = 0; x < width; x++) {
+        row[x * 3] = (byte) (rgb[x] >> 16);
+        row[x * 3 + 1] = (byte) (rgb[x] >> 8);
+        row[x * 3 + 2] = (byte) rgb[x];
       }
+      pImage.setRow(y, row, 0);
     }
     return pImage;
   }
@@ -61,15 +92,18 @@ public class ImageUtils {
    *  @return a BufferedImage with the same pixels as the PixImage.
    */
   static BufferedImage pixImage2buffer(PixImage pImage) {
-    BufferedImage bImage = new BufferedImage(pImage.getWidth(),
-                                             pImage.getHeight(),
+    int width = pImage.getWidth();
+    BufferedImage bImage = new BufferedImage(width, pImage.getHeight(),
                                              BufferedImage.TYPE_INT_ARGB);
-    for (int x = 0; x < bImage.getWidth(); x++) {
-      for (int y = 0; y < bImage.getHeight(); y++) {
-        bImage.setRGB(x, y, new Color(pImage.getRed(x, y),
-                                      pImage.getGreen(x, y),
-                                      pImage.getBlue(x, y)).getRGB());
+    int[] rgb = new int[width];
+    byte[] row = new byte[width * 3];
+    for (int y = 0; y < bImage.getHeight(); y++) {
+      pImage.getRow(y, row, 0);
+      for (int x = 0; x < width; x++) {
+        rgb[x] = 0xff000000 | (row[x * 3] & 0xff) << 16 |
+                 (row[x * 3 + 1] & 0xff) << 8 | (row[x * 3 + 2] & 0xff);
       }
+      bImage.setRGB(0, y, width, 1, rgb, 0, width);
     }
     return bImage;
   }
@@ -86,21 +120,32 @@ public class ImageUtils {
 
   /**
    *  readTIFFPix() reads an image from a file and formats it as a PixImage.
+   *  Files in the layouts our tools write are decoded directly; any other
+   *  file is read through JAI.
    *  @param filename the name of the file to read.
    *  @return a PixImage of the file
    */
   public static PixImage readTIFFPix(String filename) {
-    return buffer2PixImage(readTIFF(filename));
+    try {
+      return TIFFDecoder.readPixImage(filename, mappedInput);
+    } catch (IOException e) {
+      return buffer2PixImage(readTIFF(filename));
+    }
   }
 
   /**
    *  readTIFFRLE() reads an image from a file and formats it as a run-length
-   *  encoding.
+   *  encoding.  Files in the layouts our tools write are decoded straight
+   *  into runs, without holding the whole image in memory.
    *  @param filename the name of the file to read.
    *  @return a RunLengthEncoding of the file.
    */
   public static RunLengthEncoding readTIFFRLE(String filename) {
-    return new RunLengthEncoding(readTIFFPix(filename));
+    try {
+      return TIFFDecoder.readRunLengthEncoding(filename, mappedInput);
+    } catch (IOException e) {
+      return new RunLengthEncoding(readTIFFPix(filename));
+    }
   }
 
   /**
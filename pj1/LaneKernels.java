@@ -0,0 +1,260 @@
+/* LaneKernels.java */
+
+/**
+ *  The LaneKernels class holds lane-parallel versions of the inner loops of
+ *  BoxBlur and SobelKernel.  They compute exactly the same bytes as the
+ *  scalar loops, but every loop is a straight, branch-free pass over int or
+ *  byte arrays with unit stride and no division, which is the shape HotSpot's
+ *  C2 compiler turns into SIMD instructions (its "superword" optimization).
+ *
+ *  Divisions by the neighbor count of the box blur are replaced by a multiply
+ *  and a shift:  for every count d in {1, 2, 3, 4, 6, 9} and every sum
+ *  0 <= v <= 255 * d,  v / d == (v * RECIPROCALS[d]) >>> 16.  main() checks
+ *  this exhaustively, along with whole images against the scalar kernels.
+ *
+ *  When the VM runs with the jdk.incubator.vector module
+ *  (--add-modules jdk.incubator.vector) and vector/VectorKernels.java has
+ *  been compiled alongside the other classes, the bulk of each loop runs on
+ *  explicit SIMD instructions instead (see VectorKernels), if the hardware
+ *  has vectors of at least 256 bits.  This is detected once, when the class
+ *  is loaded; otherwise VECTORS is null and the loops below do all the work.
+ *
+ *  The system property piximage.kernels overrides the choice:  "scalar"
+ *  selects the original scalar kernels, "lanes" these loops without the
+ *  Vector API, and "vector" (the default) the Vector API where available.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+class LaneKernels {
+
+  /**
+   *  RECIPROCALS[d] is ceil(2^16 / d) for each possible box blur neighbor
+   *  count d.
+   */
+  private static final int[] RECIPROCALS = new int[10];
+
+  static {
+    for (int d = 1; d < RECIPROCALS.length; d++) {
+      RECIPROCALS[d] = (65536 + d - 1) / d;
+    }
+  }
+
+  /**
+   *  Vectors is implemented by VectorKernels.  Each method computes lanes
+   *  from, from + 1, ... of the loop of the same purpose below, stopping
+   *  before "to" wherever whole vectors run out, and returns the first lane
+   *  it did not compute.
+   */
+  interface Vectors {
+
+    /**
+     *  average() computes lanes of the inner loop of averageRow().
+     */
+    int average(int[] above, int[] current, int[] below, int reciprocal,
+                byte[] dst, int offset, int from, int to);
+
+    /**
+     *  differences() computes lanes 0... of s and t in sobelRow().
+     */
+    int differences(byte[] above, int aboveOff, byte[] current,
+                    int currentOff, byte[] below, int belowOff,
+                    int[] s, int[] t, int lanes);
+
+    /**
+     *  energies() computes lanes of the inner energy loop of sobelRow().
+     */
+    int energies(int[] s, int[] t, int[] e, int from, int to);
+  }
+
+  /**
+   *  ENABLED is true if BoxBlur and SobelKernel should use the lane kernels.
+   */
+  static final boolean ENABLED =
+    !"scalar".equals(System.getProperty("piximage.kernels"));
+
+  /**
+   *  VECTORS runs the lane kernels' loops on the Vector API, or is null.
+   */
+  static final Vectors VECTORS = loadVectors();
+
+  /**
+   *  loadVectors() returns a VectorKernels if the lane kernels are enabled,
+   *  the Vector API has not been turned off, and both the incubator module
+   *  and the VectorKernels class are present; otherwise it returns null.
+   */
+  private static Vectors loadVectors() {
+    if (!ENABLED || "lanes".equals(System.getProperty("piximage.kernels")) ||
+        !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+      return null;
+    }
+    try {
+      return (Vectors) Class.forName("VectorKernels")
+                            .getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      // VectorKernels was not compiled, or its vectors are too narrow.
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   *  averageRow() is the lane version of BoxBlur.averageRow(), with the same
+   *  parameters and results.
+   */
+  static void averageRow(int[] above, int[] current, int[] below, int rows,
+                         byte[] dst, int offset, int width) {
+    int lanes = width * 3;
+    int edge = RECIPROCALS[(width == 1 ? 1 : 2) * rows];
+    int inner = RECIPROCALS[3 * rows];
+
+    int i = 3;
+    if (VECTORS != null) {
+      i = VECTORS.average(above, current, below, inner, dst, offset, 3,
+                          lanes - 3);
+    }
+    for (; i < lanes - 3; i++) {
+      dst[offset + i] =
+        (byte) (((above[i] + current[i] + below[i]) * inner) >>> 16);
+    }
+    for (int c = 0; c < 3; c++) {
+      dst[offset + c] =
+        (byte) (((above[c] + current[c] + below[c]) * edge) >>> 16);
+      i = lanes - 3 + c;
+      dst[offset + i] =
+        (byte) (((above[i] + current[i] + below[i]) * edge) >>> 16);
+    }
+  }
+
+  /**
+   *  sobelRow() is the lane version of SobelKernel.sobelRow(), with the same
+   *  parameters and results.  It needs a third scratch array, e, in which it
+   *  stores the energy of each lane before the three lanes of each pixel are
+   *  added together.
+   */
+  static void sobelRow(byte[] above, int aboveOff, byte[] current,
+                       int currentOff, byte[] below, int belowOff,
+                       byte[] dst, int dstOff, int width,
+                       int[] s, int[] t, int[] e) {
+    int lanes = width * 3;
+    int i = 0;
+    if (VECTORS != null) {
+      i = VECTORS.differences(above, aboveOff, current, currentOff, below,
+                              belowOff, s, t, lanes);
+    }
+    for (; i < lanes; i++) {
+      int a = above[aboveOff + i] & 0xff;
+      int b = below[belowOff + i] & 0xff;
+      s[i] = a - b;
+      t[i] = a + 2 * (current[currentOff + i] & 0xff) + b;
+    }
+
+    i = 3;
+    if (VECTORS != null) {
+      i = VECTORS.energies(s, t, e, 3, lanes - 3);
+    }
+    for (; i < lanes - 3; i++) {
+      int gx = s[i - 3] + 2 * s[i] + s[i + 3];
+      int gy = t[i - 3] - t[i + 3];
+      e[i] = gx * gx + gy * gy;
+    }
+    // The first and last pixels use themselves as their missing neighbor.
+    for (int c = 0; c < 3; c++) {
+      int right = width == 1 ? c : 3 + c;
+      int gx = 3 * s[c] + s[right];
+      int gy = t[c] - t[right];
+      e[c] = gx * gx + gy * gy;
+      if (width > 1) {
+        i = lanes - 3 + c;
+        gx = s[i - 3] + 3 * s[i];
+        gy = t[i - 3] - t[i];
+        e[i] = gx * gx + gy * gy;
+      }
+    }
+
+    for (i = 0; i < lanes; i += 3) {
+      byte g = (byte) SobelKernel.gray(e[i] + e[i + 1] + e[i + 2]);
+      dst[dstOff + i] = g;
+      dst[dstOff + i + 1] = g;
+      dst[dstOff + i + 2] = g;
+    }
+  }
+
+
+  /**
+   * TEST CODE:  checks the lane kernels against the scalar kernels.
+   */
+
+
+  /**
+   * doTest() checks whether the condition is true and prints the given error
+   * message if it is not.
+   *
+   * @param b the condition to check.
+   * @param msg the error message to print if the condition is false.
+   */
+  private static void doTest(boolean b, String msg) {
+    if (b) {
+      System.out.println("Good.");
+    } else {
+      System.err.println(msg);
+    }
+  }
+
+  /**
+   * main() checks the reciprocal division table exhaustively, then blurs and
+   * edge-detects random images of many shapes with both the lane kernels and
+   * the scalar kernels and checks that every output byte matches.
+   */
+  public static void main(String[] args) {
+    System.out.println("Lane kernels enabled by default:  " + ENABLED +
+                       ", on " + (VECTORS == null ? "scalar loops"
+                                                   : VECTORS.toString()));
+
+    System.out.println("Testing reciprocal division for every neighbor " +
+                       "count.");
+    boolean exact = true;
+    int[] counts = { 1, 2, 3, 4, 6, 9 };
+    for (int d : counts) {
+      for (int v = 0; v <= 255 * d; v++) {
+        exact &= v / d == (v * RECIPROCALS[d]) >>> 16;
+      }
+    }
+    doTest(exact, "Reciprocal division is not exact.");
+
+    int[][] sizes = { { 1, 1 }, { 1, 2 }, { 2, 1 }, { 2, 2 }, { 1, 37 },
+                      { 37, 1 }, { 3, 3 }, { 4, 2 }, { 2, 4 }, { 64, 48 },
+                      { 101, 67 } };
+    Random random = new Random(61);
+    for (int[] size : sizes) {
+      int width = size[0], height = size[1];
+      for (int trial = 0; trial < 4; trial++) {
+        byte[] pixels = new byte[width * height * 3];
+        if (trial == 0) {
+          random.nextBytes(pixels);
+        } else {
+          // Extreme and flat images exercise the largest sums and energies.
+          for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (random.nextInt(trial + 1) == 0 ? 255 : 0);
+          }
+        }
+
+        byte[] lanes = BoxBlur.blur(pixels, width, height, 3, null, true);
+        byte[] scalar = BoxBlur.blur(pixels, width, height, 3, null, false);
+        doTest(Arrays.equals(lanes, scalar),
+               "Lane box blur differs on a " + width + "x" + height +
+               " image.");
+
+        lanes = new byte[pixels.length];
+        scalar = new byte[pixels.length];
+        SobelKernel.sobelRows(pixels, lanes, width, height, 0, height, true);
+        SobelKernel.sobelRows(pixels, scalar, width, height, 0, height,
+                              false);
+        doTest(Arrays.equals(lanes, scalar),
+               "Lane Sobel differs on a " + width + "x" + height + " image.");
+      }
+    }
+  }
+}
@@ -15,6 +15,9 @@
  *  See the README file accompanying this project for additional details.
  */
 
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
 public class PixImage {
 
   /**
@@ -22,7 +25,20 @@ public class PixImage {
    *  variables MUST be private.
    */
   private int width, height;
-  private short[][] red, green, blue;
+
+  /**
+   *  pixels stores the whole image in one contiguous row-major buffer, three
+   *  bytes per pixel with the red, green, and blue intensities interleaved.
+   *  Pixel (x, y) starts at index (y * width + x) * 3.  Bytes are signed in
+   *  Java, so intensities are read back with "& 0xff".
+   */
+  private byte[] pixels;
+
+  /**
+   *  parallelPool is the pool used by the blurs and sobelEdges() when no
+   *  pool is passed explicitly.  If it is null, they run sequentially.
+   */
+  private static volatile ForkJoinPool parallelPool;
 
 
 
@@ -37,9 +53,22 @@ public class PixImage {
   public PixImage(int width, int height) {
   	this.width = width;
   	this.height = height;
-  	red = new short[width][height];
-  	green = new short[width][height];
-  	blue = new short[width][height];
+  	pixels = new byte[width * height * 3];
+  }
+
+  /**
+   * PixImage() wraps an existing interleaved row-major pixel buffer of the
+   * specified width and height.  The buffer is not copied, so the caller
+   * must not keep using it.
+   *
+   * @param width the width of the image.
+   * @param height the height of the image.
+   * @param pixels a buffer of width * height * 3 bytes.
+   */
+  PixImage(int width, int height, byte[] pixels) {
+  	this.width = width;
+  	this.height = height;
+  	this.pixels = pixels;
   }
 
   /**
@@ -68,7 +97,7 @@ public class PixImage {
    * @return the red intensity of the pixel at coordinate (x, y).
    */
   public short getRed(int x, int y) {
-  	return red[x][y];
+  	return (short) (pixels[(y * width + x) * 3] & 0xff);
   }
 
   /**
@@ -79,7 +108,7 @@ public class PixImage {
    * @return the green intensity of the pixel at coordinate (x, y).
    */
   public short getGreen(int x, int y) {
-  	return green[x][y];
+  	return (short) (pixels[(y * width + x) * 3 + 1] & 0xff);
   }
 
   /**
@@ -90,7 +119,7 @@ public class PixImage {
    * @return the blue intensity of the pixel at coordinate (x, y).
    */
   public short getBlue(int x, int y) {
-  	return blue[x][y];
+  	return (short) (pixels[(y * width + x) * 3 + 2] & 0xff);
   }
 
   private boolean checkColor(short color) {
@@ -112,12 +141,52 @@ public class PixImage {
    */
   public void setPixel(int x, int y, short red, short green, short blue) {
   	if (checkColor(red) && checkColor(green) && checkColor(blue)) {
-  		this.red[x][y] = red;
-  		this.green[x][y] = green;
-  		this.blue[x][y] = blue;
+  		int i = (y * width + x) * 3;
+  		pixels[i] = (byte) red;
+  		pixels[i + 1] = (byte) green;
+  		pixels[i + 2] = (byte) blue;
   	}
   }
 
+  /**
+   * getRow() copies row y of the image into dst, starting at index offset.
+   * The row is written as width * 3 bytes with the red, green, and blue
+   * intensities of each pixel interleaved, left to right.  Read each
+   * intensity back with "& 0xff".
+   *
+   * @param y the y-coordinate of the row.
+   * @param dst the array to copy the row into.
+   * @param offset the index in dst where the row begins.
+   */
+  public void getRow(int y, byte[] dst, int offset) {
+  	System.arraycopy(pixels, y * width * 3, dst, offset, width * 3);
+  }
+
+  /**
+   * setRow() overwrites row y of the image with width * 3 interleaved red,
+   * green, and blue bytes taken from src, starting at index offset.  Every
+   * byte is a valid intensity, so no range check is necessary.
+   *
+   * @param y the y-coordinate of the row.
+   * @param src the array holding the new row.
+   * @param offset the index in src where the row begins.
+   */
+  public void setRow(int y, byte[] src, int offset) {
+  	System.arraycopy(src, offset, pixels, y * width * 3, width * 3);
+  }
+
+  /**
+   * setParallelPool() selects the ForkJoinPool that boxBlur(int),
+   * boxBlurRadius(int), gaussianBlur(double), and sobelEdges() split their
+   * work across.  Pass null (the default) to run them sequentially on the
+   * calling thread.  The output is identical either way.
+   *
+   * @param pool the pool to use, or null for sequential execution.
+   */
+  public static void setParallelPool(ForkJoinPool pool) {
+  	parallelPool = pool;
+  }
+
   /**
    * toString() returns a String representation of this PixImage.
    *
@@ -131,31 +200,6 @@ public class PixImage {
   	return "Width: " + width + "   Height:" + height;
   }
 
-  private boolean validPixel(int x, int y, int width, int height) {
-  	return (x >= 0) && (x < width) && (y >= 0) && (y < height);
-  }
-
-  private short[][] colorBlur(short[][] color, int width, int height) {
-  	short[][] blurred = new short[width][height];
-
-  	for (int i = 0; i < width; i++) {
-  		for (int j = 0; j < height; j++) {
-  			short sum = 0, count = 0;
-  			for (int x = i - 1; x <= i + 1; x++) {
-  				for (int y = j - 1; y <= j + 1; y++) {
-  					if (validPixel(x, y, width, height)) {
-  						sum += color[x][y];
-  						count++;
-  					}
-  				}
-  			}
-  			blurred[i][j] = (short) (sum / count);
-  		}
-  	}
-
-  	return blurred;
-  }
-
   /**
    * boxBlur() returns a blurred version of "this" PixImage.
    *
@@ -186,23 +230,96 @@ public class PixImage {
    * @return a blurred version of "this" PixImage.
    */
   public PixImage boxBlur(int numIterations) {
+  	return boxBlur(numIterations, parallelPool);
+  }
+
+  /**
+   * boxBlur() returns a blurred version of "this" PixImage, exactly as
+   * boxBlur(numIterations) does, but splits each iteration into bands of rows
+   * that are blurred in parallel on the given pool.  Each band reads the rows
+   * just above and below it from the previous iteration, so the result is
+   * identical to the sequential blur.
+   *
+   * @param numIterations the number of iterations of box blurring.
+   * @param pool the pool to run on, or null to run sequentially.
+   * @return a blurred version of "this" PixImage.
+   */
+  public PixImage boxBlur(int numIterations, ForkJoinPool pool) {
   	if (numIterations <= 0) {
   		return this;
   	}
 
-  	PixImage oldImg = this;
-  	int width = this.width, height = this.height;
+  	return new PixImage(width, height,
+  	                    BoxBlur.blur(pixels, width, height, numIterations, pool));
+  }
+
+  /**
+   * boxBlurRadius() returns a version of "this" PixImage in which each pixel
+   * is the average of its neighbors within "radius" pixels horizontally and
+   * vertically (a (2 * radius + 1) x (2 * radius + 1) square, clipped to the
+   * image), with non-integer quotients rounded toward zero.  Radius 1 gives
+   * exactly boxBlur(1).  The time taken does not depend on the radius (see
+   * SummedAreaBlur), so one wide box replaces many iterations of boxBlur().
+   *
+   * If radius is zero or negative, "this" PixImage is returned (not a copy).
+   *
+   * @param radius the radius of the box.
+   * @return a blurred version of "this" PixImage.
+   */
+  public PixImage boxBlurRadius(int radius) {
+  	return boxBlurRadius(radius, parallelPool);
+  }
+
+  /**
+   * boxBlurRadius() returns the same image as boxBlurRadius(radius), but
+   * computes bands of rows in parallel on the given pool.
+   *
+   * @param radius the radius of the box.
+   * @param pool the pool to run on, or null to run sequentially.
+   * @return a blurred version of "this" PixImage.
+   */
+  public PixImage boxBlurRadius(int radius, ForkJoinPool pool) {
+  	if (radius <= 0) {
+  		return this;
+  	}
+
+  	return new PixImage(width, height,
+  	                    SummedAreaBlur.blur(pixels, width, height, radius,
+  	                                        pool));
+  }
+
+  /**
+   * gaussianBlur() returns a version of "this" PixImage blurred by an
+   * approximate Gaussian of standard deviation sigma, computed as three
+   * box blurs of suitable radii with boxBlurRadius().  Like boxBlurRadius(),
+   * it takes the same time for any sigma.
+   *
+   * If sigma is zero or negative, "this" PixImage is returned (not a copy).
+   *
+   * @param sigma the standard deviation of the Gaussian, in pixels.
+   * @return a blurred version of "this" PixImage.
+   */
+  public PixImage gaussianBlur(double sigma) {
+  	return gaussianBlur(sigma, parallelPool);
+  }
 
-  	while (numIterations > 0) {
-  		numIterations--;
-  		PixImage newImg = new PixImage(width, height);
-  		newImg.red = colorBlur(oldImg.red, width, height);
-  		newImg.green = colorBlur(oldImg.green, width, height);
-  		newImg.blue = colorBlur(oldImg.blue, width, height);
-  		oldImg = newImg;
+  /**
+   * gaussianBlur() returns the same image as gaussianBlur(sigma), but
+   * computes bands of rows in parallel on the given pool.
+   *
+   * @param sigma the standard deviation of the Gaussian, in pixels.
+   * @param pool the pool to run on, or null to run sequentially.
+   * @return a blurred version of "this" PixImage.
+   */
+  public PixImage gaussianBlur(double sigma, ForkJoinPool pool) {
+  	if (!(sigma > 0)) {
+  		return this;
   	}
 
-  	return oldImg;
+  	byte[] blurred = SummedAreaBlur.gaussian(pixels, width, height, sigma,
+  	                                         pool);
+  	return new PixImage(width, height,
+  	                    blurred == pixels ? pixels.clone() : blurred);
   }
 
   /**
@@ -211,13 +328,14 @@ public class PixImage {
    * is logarithmic, but shifted so that values of 5,080 and below map to zero.
    *
    * DO NOT CHANGE THIS METHOD.  If you do, you will not be able to get the
-   * correct images and pass the autograder.
+   * correct images and pass the autograder.  (SobelKernel builds its lookup
+   * table from this method, so it is package-private.)
    *
    * @param mag the energy (squared vector magnitude) of the pixel whose
    * intensity we want to compute.
    * @return the intensity of the output pixel.
    */
-  private static short mag2gray(long mag) {
+  static short mag2gray(long mag) {
     short intensity = (short) (30.0 * Math.log(1.0 + (double) mag) - 256.0);
 
     // Make sure the returned intensity is in the range 0...255, regardless of
@@ -230,28 +348,6 @@ public class PixImage {
     return intensity;
   }
 
-  private long[][] energyColor(short[][] color, int width, int height) {
-  	long[][] energy = new long[width][height];
-  	short[][] convX = {{1, 0, -1}, {2, 0, -2}, {1, 0, -1}}, convY = {{1, 2, 1}, {0, 0, 0}, {-1, -2, -1}};
-
-  	for (int i = 0; i < width; i++) {
-  		for (int j = 0; j < height; j++) {
-  			long gx = 0, gy = 0;
-  			for (int x = i - 1; x <= i + 1; x++) {
-  				for (int y = j - 1; y <= j + 1; y++) {
-  					int coorX = Math.min(Math.max(x, 0), width - 1);
-  					int coorY = Math.min(Math.max(y, 0), height - 1);
-  					gx += (long) convX[x-i+1][y-j+1] * (long) color[coorX][coorY];
-  					gy += (long) convY[x-i+1][y-j+1] * (long) color[coorX][coorY];
-  				}
-  			}
-  			energy[i][j] = gx * gx + gy * gy;
-  		}
-  	}
-
-  	return energy;
-  }
-
   /**
    * sobelEdges() applies the Sobel operator, identifying edges in "this"
    * image.  The Sobel operator computes a magnitude that represents how
@@ -268,21 +364,190 @@ public class PixImage {
    * Whiter pixels represent stronger edges.
    */
   public PixImage sobelEdges() {
-  	int width = this.width, height = this.height;
-  	long[][] energyRed = energyColor(this.red, width, height);
-  	long[][] energyGreen = energyColor(this.green, width, height);
-  	long[][] energyBlue = energyColor(this.blue, width, height);
-  	PixImage grayImg = new PixImage(width, height);
-
-  	for (int i = 0; i < width; i++) {
-  		for (int j = 0; j < height; j++) {
-  			grayImg.red[i][j] = mag2gray(energyRed[i][j] + energyGreen[i][j]+ energyBlue[i][j]);
+  	return sobelEdges(parallelPool);
+  }
+
+  /**
+   * sobelEdges() returns the same grayscale edge image as sobelEdges(), but
+   * computes bands of rows in parallel on the given pool.
+   *
+   * @param pool the pool to run on, or null to run sequentially.
+   * @return a grayscale PixImage representing the edges of the input image.
+   */
+  public PixImage sobelEdges(ForkJoinPool pool) {
+  	final byte[] gray = new byte[pixels.length];
+
+  	RowBands.run(pool, height, new RowBands.Kernel() {
+  		public void run(int y0, int y1) {
+  			SobelKernel.sobelRows(pixels, gray, width, height, y0, y1);
   		}
+  	});
+
+  	return new PixImage(width, height, gray);
+  }
+
+  /**
+   * checkRegion() throws an IllegalArgumentException unless the rectangle
+   * with top left corner (x, y) and the given width and height lies inside
+   * the image.
+   */
+  private void checkRegion(int x, int y, int regionWidth, int regionHeight) {
+  	if (x < 0 || y < 0 || regionWidth < 0 || regionHeight < 0 ||
+  	    regionWidth > width - x || regionHeight > height - y) {
+  		throw new IllegalArgumentException("The " + regionWidth + "x" +
+  		                                   regionHeight + " region at (" + x +
+  		                                   ", " + y + ") is not inside the " +
+  		                                   width + "x" + height + " image.");
+  	}
+  }
+
+  /**
+   * cropPixels() copies the rectangle with top left corner (x, y) and the
+   * given width and height out of an image buffer "rowWidth" pixels wide.
+   */
+  private static byte[] cropPixels(byte[] src, int rowWidth, int x, int y,
+                                   int regionWidth, int regionHeight) {
+  	byte[] region = new byte[regionWidth * regionHeight * 3];
+  	for (int j = 0; j < regionHeight; j++) {
+  		System.arraycopy(src, ((y + j) * rowWidth + x) * 3, region,
+  		                 j * regionWidth * 3, regionWidth * 3);
+  	}
+  	return region;
+  }
+
+  /**
+   * crop() returns a copy of the rectangle of "this" PixImage with top left
+   * corner (x, y) and the given width and height.
+   *
+   * @param x the x-coordinate of the left column of the rectangle.
+   * @param y the y-coordinate of the top row of the rectangle.
+   * @param regionWidth the width of the rectangle.
+   * @param regionHeight the height of the rectangle.
+   * @return a regionWidth x regionHeight PixImage.
+   * @throws IllegalArgumentException if the rectangle is not inside the image.
+   */
+  public PixImage crop(int x, int y, int regionWidth, int regionHeight) {
+  	checkRegion(x, y, regionWidth, regionHeight);
+  	return new PixImage(regionWidth, regionHeight,
+  	                    cropPixels(pixels, width, x, y, regionWidth,
+  	                               regionHeight));
+  }
+
+  /**
+   * paste() overwrites the rectangle of "this" PixImage with top left corner
+   * (x, y) with the pixels of "region", which must fit inside the image.
+   * (EdgeMap uses it to patch an edge image, so it is package-private.)
+   *
+   * @param region the pixels to copy.
+   * @param x the x-coordinate where the left column of region goes.
+   * @param y the y-coordinate where the top row of region goes.
+   */
+  void paste(PixImage region, int x, int y) {
+  	checkRegion(x, y, region.width, region.height);
+  	for (int j = 0; j < region.height; j++) {
+  		System.arraycopy(region.pixels, j * region.width * 3, pixels,
+  		                 ((y + j) * width + x) * 3, region.width * 3);
+  	}
+  }
+
+  /**
+   * boxBlurRegion() returns the rectangle with top left corner (x, y) and the
+   * given width and height of boxBlur(numIterations), without blurring the
+   * rest of the image.  Each iteration spreads a pixel's influence by one
+   * pixel, so only the rectangle plus a halo numIterations pixels wide
+   * (clipped to the image) is read and blurred.  Pixels near the edge of the
+   * halo come out wrong, because their neighbors outside it are missing, but
+   * the error also travels only one pixel per iteration and never reaches
+   * the rectangle.  The cost depends on the size of the rectangle, not of
+   * the image.
+   *
+   * @param numIterations the number of iterations of box blurring.
+   * @param x the x-coordinate of the left column of the rectangle.
+   * @param y the y-coordinate of the top row of the rectangle.
+   * @param regionWidth the width of the rectangle.
+   * @param regionHeight the height of the rectangle.
+   * @return a regionWidth x regionHeight PixImage.
+   * @throws IllegalArgumentException if the rectangle is not inside the image.
+   */
+  public PixImage boxBlurRegion(int numIterations, int x, int y,
+                                int regionWidth, int regionHeight) {
+  	checkRegion(x, y, regionWidth, regionHeight);
+  	int halo = Math.max(numIterations, 0);
+  	int x0 = Math.max(x - halo, 0), y0 = Math.max(y - halo, 0);
+  	int x1 = (int) Math.min((long) x + regionWidth + halo, width);
+  	int y1 = (int) Math.min((long) y + regionHeight + halo, height);
+  	byte[] region = cropPixels(pixels, width, x0, y0, x1 - x0, y1 - y0);
+  	if (numIterations > 0 && regionWidth > 0 && regionHeight > 0) {
+  		region = BoxBlur.blur(region, x1 - x0, y1 - y0, numIterations,
+  		                      parallelPool);
   	}
-  	grayImg.green = grayImg.red;
-  	grayImg.blue = grayImg.red;
+  	return new PixImage(regionWidth, regionHeight,
+  	                    cropPixels(region, x1 - x0, x - x0, y - y0,
+  	                               regionWidth, regionHeight));
+  }
+
+  /**
+   * sobelEdgesRegion() returns the rectangle with top left corner (x, y) and
+   * the given width and height of sobelEdges(), reading only the rectangle
+   * and the one-pixel halo around it.
+   *
+   * @param x the x-coordinate of the left column of the rectangle.
+   * @param y the y-coordinate of the top row of the rectangle.
+   * @param regionWidth the width of the rectangle.
+   * @param regionHeight the height of the rectangle.
+   * @return a grayscale regionWidth x regionHeight PixImage.
+   * @throws IllegalArgumentException if the rectangle is not inside the image.
+   */
+  public PixImage sobelEdgesRegion(int x, int y, int regionWidth,
+                                   int regionHeight) {
+  	checkRegion(x, y, regionWidth, regionHeight);
+  	int x0 = Math.max(x - 1, 0), y0 = Math.max(y - 1, 0);
+  	int x1 = Math.min(x + regionWidth + 1, width);
+  	int y1 = Math.min(y + regionHeight + 1, height);
+  	byte[] region = cropPixels(pixels, width, x0, y0, x1 - x0, y1 - y0);
+  	byte[] gray = new byte[region.length];
+  	SobelKernel.sobelRows(region, gray, x1 - x0, y1 - y0, y - y0,
+  	                      y - y0 + regionHeight);
+  	return new PixImage(regionWidth, regionHeight,
+  	                    cropPixels(gray, x1 - x0, x - x0, y - y0,
+  	                               regionWidth, regionHeight));
+  }
+
+  /**
+   * halve() returns a half-size version of "this" PixImage, (width + 1) / 2
+   * pixels wide and (height + 1) / 2 pixels high, in which each pixel is the
+   * average of a 2x2 block of pixels (or of the pixels that exist, for blocks
+   * on the right or bottom edge of an image of odd width or height), with
+   * non-integer quotients rounded toward zero.
+   *
+   * @return a half-size version of "this" PixImage.
+   */
+  public PixImage halve() {
+  	return new PixImage((width + 1) / 2, (height + 1) / 2,
+  	                    Pyramid.halve(pixels, width, height, parallelPool));
+  }
 
-  	return grayImg;
+  /**
+   * pyramid() returns "this" PixImage followed by successively halved
+   * versions of it (see halve()), for viewing the image at reduced zoom:
+   * level k is about 2^k times smaller in each dimension.  The pyramid stops
+   * at "levels" images, or at a 1x1 image, whichever comes first.  Each level
+   * is computed from the one before, so the whole pyramid costs about a third
+   * more than the first halving.
+   *
+   * @param levels the largest number of images to return (at least one).
+   * @return the levels of the pyramid, largest first.
+   */
+  public PixImage[] pyramid(int levels) {
+  	java.util.List<PixImage> pyramid = new java.util.ArrayList<PixImage>();
+  	PixImage level = this;
+  	pyramid.add(level);
+  	while (pyramid.size() < levels &&
+  	       (level.width > 1 || level.height > 1)) {
+  		level = level.halve();
+  		pyramid.add(level);
+  	}
+  	return pyramid.toArray(new PixImage[pyramid.size()]);
   }
 
 
@@ -331,6 +596,106 @@ public class PixImage {
     return image;
   }
 
+  /**
+   * randomImage() creates an image of the given size filled with random
+   * intensities.
+   *
+   * @param width the width of the image.
+   * @param height the height of the image.
+   * @param seed the seed for the random number generator.
+   * @return a new PixImage with random pixels.
+   */
+  private static PixImage randomImage(int width, int height, long seed) {
+    Random random = new Random(seed);
+    PixImage image = new PixImage(width, height);
+
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        image.setPixel(x, y, (short) random.nextInt(256),
+                       (short) random.nextInt(256),
+                       (short) random.nextInt(256));
+      }
+    }
+
+    return image;
+  }
+
+  /**
+   * referenceBoxBlurRadius() averages each pixel's neighbors within "radius"
+   * pixels directly, to check boxBlurRadius().
+   *
+   * @param image the input image.
+   * @param radius the radius of the box.
+   * @return the blurred image.
+   */
+  private static PixImage referenceBoxBlurRadius(PixImage image, int radius) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    PixImage blurred = new PixImage(width, height);
+
+    for (int i = 0; i < width; i++) {
+      for (int j = 0; j < height; j++) {
+        int red = 0, green = 0, blue = 0, count = 0;
+        for (int x = Math.max(i - radius, 0);
+             x <= Math.min((long) i + radius, width - 1); x++) {
+          for (int y = Math.max(j - radius, 0);
+               y <= Math.min((long) j + radius, height - 1); y++) {
+            red += image.getRed(x, y);
+            green += image.getGreen(x, y);
+            blue += image.getBlue(x, y);
+            count++;
+          }
+        }
+        blurred.setPixel(i, j, (short) (red / count), (short) (green / count),
+                         (short) (blue / count));
+      }
+    }
+
+    return blurred;
+  }
+
+  /**
+   * referenceSobelEdges() is the original, unfused implementation of
+   * sobelEdges(), kept to check that the fused kernel produces exactly the
+   * same output.  It convolves each color with both 3x3 Sobel kernels
+   * (clamping coordinates at the boundary) and maps the summed energies with
+   * mag2gray().
+   *
+   * @param image the input image.
+   * @return a grayscale PixImage representing the edges of the input image.
+   */
+  private static PixImage referenceSobelEdges(PixImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[][] convX = {{1, 0, -1}, {2, 0, -2}, {1, 0, -1}};
+    int[][] convY = {{1, 2, 1}, {0, 0, 0}, {-1, -2, -1}};
+    PixImage gray = new PixImage(width, height);
+
+    for (int i = 0; i < width; i++) {
+      for (int j = 0; j < height; j++) {
+        long energy = 0;
+        for (int c = 0; c < 3; c++) {
+          long gx = 0, gy = 0;
+          for (int x = i - 1; x <= i + 1; x++) {
+            for (int y = j - 1; y <= j + 1; y++) {
+              int cx = Math.min(Math.max(x, 0), width - 1);
+              int cy = Math.min(Math.max(y, 0), height - 1);
+              long v = c == 0 ? image.getRed(cx, cy) :
+                       c == 1 ? image.getGreen(cx, cy) : image.getBlue(cx, cy);
+              gx += convX[x - i + 1][y - j + 1] * v;
+              gy += convY[x - i + 1][y - j + 1] * v;
+            }
+          }
+          energy += gx * gx + gy * gy;
+        }
+        short g = mag2gray(energy);
+        gray.setPixel(i, j, g, g, g);
+      }
+    }
+
+    return gray;
+  }
+
   /**
    * equals() checks whether two images are the same, i.e. have the same
    * dimensions and pixels.
@@ -418,5 +783,136 @@ public class PixImage {
            array2PixImage(new int[][] { { 122, 143, 74 },
                                         { 74, 143, 122 } })),
            "Incorrect Sobel:\n" + image2.sobelEdges());
+
+
+    PixImage image3 = randomImage(97, 61, 0);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    System.out.println("Testing parallel blurring on a 97x61 image.");
+    doTest(image3.boxBlur(5, pool).equals(image3.boxBlur(5, null)),
+           "Parallel box blur differs from sequential box blur.");
+
+    System.out.println("Testing parallel edge detection on a 97x61 image.");
+    doTest(image3.sobelEdges(pool).equals(image3.sobelEdges(null)),
+           "Parallel Sobel differs from sequential Sobel.");
+
+    System.out.println("Testing temporally blocked blurring on a 2000x90 " +
+                       "image.");
+    PixImage image4 = randomImage(2000, 90, 4);
+    byte[] blocked = BoxBlur.blur(image4.pixels, 2000, 90, 12, pool,
+                                  LaneKernels.ENABLED, true);
+    byte[] unblocked = BoxBlur.blur(image4.pixels, 2000, 90, 12, null,
+                                    LaneKernels.ENABLED, false);
+    PixImage empty = new PixImage(0, 7);
+    doTest(java.util.Arrays.equals(blocked, unblocked) &&
+           BoxBlur.blur(empty.pixels, 0, 7, 3, null, LaneKernels.ENABLED,
+                        true).length == 0,
+           "Blocked box blur differs from unblocked box blur.");
+
+    System.out.println("Testing parallel wide blurring on a 97x61 image.");
+    doTest(image3.boxBlurRadius(7, pool).equals(image3.boxBlurRadius(7, null)),
+           "Parallel wide box blur differs from sequential box blur.");
+    pool.shutdown();
+
+    System.out.println("Testing wide box blurs against the reference " +
+                       "implementation.");
+    doTest(image3.boxBlurRadius(1).equals(image3.boxBlur(1)),
+           "boxBlurRadius(1) differs from boxBlur(1).");
+    int[][] boxes = { { 1, 1, 3 }, { 1, 9, 2 }, { 9, 1, 4 }, { 31, 17, 4 },
+                      { 31, 17, 40 }, { 5, 4, Integer.MAX_VALUE } };
+    for (int i = 0; i < boxes.length; i++) {
+      PixImage image = randomImage(boxes[i][0], boxes[i][1], i);
+      doTest(image.boxBlurRadius(boxes[i][2])
+             .equals(referenceBoxBlurRadius(image, boxes[i][2])),
+             "boxBlurRadius(" + boxes[i][2] + ") differs on a random " +
+             boxes[i][0] + "x" + boxes[i][1] + " image.");
+    }
+
+    System.out.println("Testing Gaussian blurring of a point and a flat " +
+                       "image.");
+    PixImage point = new PixImage(21, 21);
+    point.setPixel(10, 10, (short) 255, (short) 255, (short) 255);
+    PixImage spread = point.gaussianBlur(2.5);
+    boolean symmetric = spread.getRed(10, 10) > spread.getRed(12, 10);
+    for (int x = 0; x < 21; x++) {
+      for (int y = 0; y < 21; y++) {
+        symmetric &= spread.getRed(x, y) == spread.getRed(20 - x, y) &&
+                     spread.getRed(x, y) == spread.getRed(y, x);
+      }
+    }
+    doTest(symmetric, "Gaussian blur of a point is not symmetric.");
+    PixImage flat = new PixImage(13, 7);
+    for (int x = 0; x < 13; x++) {
+      for (int y = 0; y < 7; y++) {
+        flat.setPixel(x, y, (short) 201, (short) 7, (short) 99);
+      }
+    }
+    doTest(flat.gaussianBlur(30.0).equals(flat) &&
+           flat.gaussianBlur(1e12).equals(flat),
+           "Gaussian blur changes a flat image.");
+
+    System.out.println("Testing region blurring and edge detection against " +
+                       "cropped whole images.");
+    PixImage blurred3 = image3.boxBlur(4);
+    PixImage edges3 = image3.sobelEdges();
+    int[][] regions = { { 0, 0, 10, 7 }, { 90, 50, 7, 11 }, { 30, 20, 25, 9 },
+                        { 2, 58, 40, 3 }, { 96, 0, 1, 61 }, { 40, 30, 1, 1 },
+                        { 0, 0, 97, 61 } };
+    for (int i = 0; i < regions.length; i++) {
+      int[] r = regions[i];
+      doTest(image3.boxBlurRegion(4, r[0], r[1], r[2], r[3])
+             .equals(blurred3.crop(r[0], r[1], r[2], r[3])) &&
+             image3.sobelEdgesRegion(r[0], r[1], r[2], r[3])
+             .equals(edges3.crop(r[0], r[1], r[2], r[3])),
+             "Region " + r[2] + "x" + r[3] + " at (" + r[0] + ", " + r[1] +
+             ") differs from the whole image.");
+    }
+    boolean outside = false;
+    try {
+      image3.crop(90, 0, 8, 1);
+    } catch (IllegalArgumentException e) {
+      outside = true;
+    }
+    doTest(outside, "crop() accepts a region outside the image.");
+
+    System.out.println("Testing halve() and pyramid() on a 3x3 image.");
+    PixImage half = image1.halve();
+    doTest(half.getWidth() == 2 && half.getHeight() == 2 &&
+           half.getRed(0, 0) == (image1.getRed(0, 0) + image1.getRed(1, 0) +
+                                 image1.getRed(0, 1) +
+                                 image1.getRed(1, 1)) / 4 &&
+           half.getRed(1, 0) == (image1.getRed(2, 0) +
+                                 image1.getRed(2, 1)) / 2 &&
+           half.getRed(0, 1) == (image1.getRed(0, 2) +
+                                 image1.getRed(1, 2)) / 2 &&
+           half.getRed(1, 1) == image1.getRed(2, 2),
+           "Incorrect halving of a 3x3 image.");
+    PixImage[] levels = image3.pyramid(10);
+    int[] widths = { 97, 49, 25, 13, 7, 4, 2, 1 };
+    int[] heights = { 61, 31, 16, 8, 4, 2, 1, 1 };
+    boolean halved = levels.length == widths.length && levels[0] == image3 &&
+                     image3.pyramid(3).length == 3;
+    for (int i = 0; halved && i < levels.length; i++) {
+      halved = levels[i].getWidth() == widths[i] &&
+               levels[i].getHeight() == heights[i];
+    }
+    doTest(halved, "Incorrect pyramid of a 97x61 image.");
+
+    System.out.println("Testing fused edge detection against the reference " +
+                       "implementation.");
+    int[][] sizes = { { 1, 1 }, { 1, 9 }, { 9, 1 }, { 2, 2 }, { 31, 17 } };
+    for (int i = 0; i < sizes.length; i++) {
+      PixImage image = randomImage(sizes[i][0], sizes[i][1], i);
+      doTest(image.sobelEdges().equals(referenceSobelEdges(image)),
+             "Fused Sobel differs on a random " + sizes[i][0] + "x" +
+             sizes[i][1] + " image.");
+    }
+    String[] tiffs = { "baby.tiff", "black.tiff", "engine.tiff",
+                       "feathers.tiff", "flower.tiff", "highcontrast.tiff",
+                       "reggie.tiff", "woman.tiff" };
+    for (String tiff : tiffs) {
+      PixImage image = ImageUtils.readTIFFPix(tiff);
+      doTest(image.sobelEdges().equals(referenceSobelEdges(image)),
+             "Fused Sobel differs on " + tiff + ".");
+    }
   }
 }
@@ -0,0 +1,81 @@
+/* Pyramid.java */
+
+/**
+ *  The Pyramid class implements the halving behind PixImage.halve() and
+ *  PixImage.pyramid().  It works directly on PixImage's interleaved row-major
+ *  pixel buffer.
+ *
+ *  Pixel (x, y) of the half-size image is the average of the 2x2 block of
+ *  pixels (2x...2x + 1, 2y...2y + 1), with the same truncating division as
+ *  PixImage.boxBlur().  An image with an odd width or height has a last
+ *  column or row of blocks that is only one pixel wide, and those blocks
+ *  average the pixels they have, just as the blur averages only the
+ *  neighbors that exist.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+class Pyramid {
+
+  /**
+   *  halveRows() computes rows y0...y1 - 1 of the half-size image.
+   *  Disjoint row ranges may be computed independently.
+   *
+   *  @param src the source image buffer.
+   *  @param dst the destination buffer, of the half-size image.
+   *  @param width the width of the source image.
+   *  @param height the height of the source image.
+   *  @param y0 the first output row.
+   *  @param y1 one past the last output row.
+   */
+  static void halveRows(byte[] src, byte[] dst, int width, int height,
+                        int y0, int y1) {
+    int rowLength = width * 3;
+    int halfWidth = (width + 1) / 2;
+    for (int y = y0; y < y1; y++) {
+      int top = 2 * y * rowLength;
+      boolean twoRows = 2 * y + 1 < height;
+      int out = y * halfWidth * 3;
+      for (int x = 0; x < halfWidth; x++) {
+        int i = top + 6 * x;
+        boolean twoColumns = 2 * x + 1 < width;
+        int count = (twoRows ? 2 : 1) * (twoColumns ? 2 : 1);
+        for (int c = 0; c < 3; c++, i++) {
+          int sum = src[i] & 0xff;
+          if (twoColumns) {
+            sum += src[i + 3] & 0xff;
+          }
+          if (twoRows) {
+            sum += src[i + rowLength] & 0xff;
+            if (twoColumns) {
+              sum += src[i + rowLength + 3] & 0xff;
+            }
+          }
+          dst[out++] = (byte) (sum / count);
+        }
+      }
+    }
+  }
+
+  /**
+   *  halve() returns a half-size image buffer, whose width and height are
+   *  those of the source rounded up, without modifying the source.
+   *
+   *  @param pixels the interleaved row-major buffer of the source image.
+   *  @param width the width of the source image.
+   *  @param height the height of the source image.
+   *  @param pool the pool to run on, or null to run sequentially.
+   *  @return a new buffer holding the half-size image.
+   */
+  static byte[] halve(final byte[] pixels, final int width, final int height,
+                      ForkJoinPool pool) {
+    int halfHeight = (height + 1) / 2;
+    final byte[] half = new byte[(width + 1) / 2 * halfHeight * 3];
+    RowBands.run(pool, halfHeight, new RowBands.Kernel() {
+      public void run(int y0, int y1) {
+        halveRows(pixels, half, width, height, y0, y1);
+      }
+    });
+    return half;
+  }
+}
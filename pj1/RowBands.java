@@ -0,0 +1,88 @@
+/* RowBands.java */
+
+/**
+ *  The RowBands class runs a row-range image kernel either sequentially or
+ *  split into horizontal bands on a ForkJoinPool.
+ *
+ *  A kernel computes output rows y0...y1 - 1 and may read any rows of its
+ *  (unmodified) input, so the one-row halos that blurring and edge detection
+ *  need above and below each band are read straight from the shared input.
+ *  Bands never write outside their own rows, so the output is the same
+ *  whether the rows are computed in one pass or in many parallel bands.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class RowBands {
+
+  /**
+   *  Kernel is implemented by any computation that produces a range of
+   *  output rows.
+   */
+  interface Kernel {
+
+    /**
+     *  run() computes output rows y0...y1 - 1.
+     *
+     *  @param y0 the first row.
+     *  @param y1 one past the last row.
+     */
+    void run(int y0, int y1);
+  }
+
+  /**
+   *  Bands are never split below this many rows, so the fork-join overhead
+   *  stays small compared to the work in each band.
+   */
+  private static final int MIN_BAND_ROWS = 8;
+
+  /**
+   *  Band is a fork-join task that computes rows y0...y1 - 1, splitting
+   *  itself in half until it is no taller than the grain.
+   */
+  private static class Band extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Kernel kernel;
+    private final int y0, y1, grain;
+
+    Band(Kernel kernel, int y0, int y1, int grain) {
+      this.kernel = kernel;
+      this.y0 = y0;
+      this.y1 = y1;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (y1 - y0 <= grain) {
+        kernel.run(y0, y1);
+      } else {
+        int mid = (y0 + y1) >>> 1;
+        invokeAll(new Band(kernel, y0, mid, grain),
+                  new Band(kernel, mid, y1, grain));
+      }
+    }
+  }
+
+  /**
+   *  run() computes rows 0...height - 1 with the given kernel.  If pool is
+   *  null, or the image is too short to be worth splitting, the kernel runs
+   *  once on the calling thread.  Otherwise the rows are split into about
+   *  four bands per worker so that uneven bands still balance out.
+   *
+   *  @param pool the pool to run on, or null to run sequentially.
+   *  @param height the number of rows.
+   *  @param kernel the computation to run.
+   */
+  static void run(ForkJoinPool pool, int height, Kernel kernel) {
+    if (pool == null || height <= MIN_BAND_ROWS) {
+      kernel.run(0, height);
+      return;
+    }
+    int bands = pool.getParallelism() * 4;
+    int grain = Math.max(MIN_BAND_ROWS, (height + bands - 1) / bands);
+    pool.invoke(new Band(kernel, 0, height, grain));
+  }
+}
@@ -1,13 +0,0 @@
-public  class Run {
-	public int red, green, blue, length;
-	public Run prev, next;
-
-	public Run() {}
-
-	public Run(int red, int green, int blue, int length) {
-		this.red = red;
-		this.green = green;
-		this.blue = blue;
-		this.length = length;
-	}
-}
@@ -0,0 +1,87 @@
+/* RunCursor.java */
+
+/**
+ *  The RunCursor class walks through the runs of a RunLengthEncoding without
+ *  allocating anything per run.  Where a RunIterator returns a new array of
+ *  four ints for every run, a RunCursor stays on one run at a time and
+ *  answers questions about it.
+ *
+ *  A newly constructed cursor is positioned before the first run.  Each call
+ *  to advance() moves it to the next run and returns true, or returns false
+ *  once every run has been visited.  length(), red(), green(), and blue()
+ *  describe the run the cursor is on, and may only be called after advance()
+ *  has returned true:
+ *
+ *      RunCursor cursor = rle.cursor();
+ *      while (cursor.advance()) {
+ *        ... cursor.length() ... cursor.red() ...
+ *      }
+ *
+ *  Like a RunIterator, a RunCursor is not guaranteed to work if the
+ *  underlying RunLengthEncoding is modified after the cursor is constructed.
+ */
+
+public class RunCursor {
+
+  private final RunList list;
+  private int index = -1;
+
+  /**
+   *  RunCursor() constructs a cursor positioned before the first run of
+   *  a run list.  Outside classes should call RunLengthEncoding.cursor().
+   *
+   *  @param list the runs to walk through.
+   */
+  RunCursor(RunList list) {
+    this.list = list;
+  }
+
+  /**
+   *  advance() moves the cursor to the next run.
+   *
+   *  @return true if the cursor is on a run, or false if every run has been
+   *  visited.
+   */
+  public boolean advance() {
+    if (index < list.getSize()) {
+      index++;
+    }
+    return index < list.getSize();
+  }
+
+  /**
+   *  length() returns the number of pixels in the current run.
+   *
+   *  @return the number of pixels in the current run.
+   */
+  public int length() {
+    return list.length(index);
+  }
+
+  /**
+   *  red() returns the red intensity of the current run.
+   *
+   *  @return the red intensity of the current run, in the range 0...255.
+   */
+  public int red() {
+    return list.red(index);
+  }
+
+  /**
+   *  green() returns the green intensity of the current run.
+   *
+   *  @return the green intensity of the current run, in the range 0...255.
+   */
+  public int green() {
+    return list.green(index);
+  }
+
+  /**
+   *  blue() returns the blue intensity of the current run.
+   *
+   *  @return the blue intensity of the current run, in the range 0...255.
+   */
+  public int blue() {
+    return list.blue(index);
+  }
+}
@@ -36,8 +36,8 @@ public class RunIterator implements Iterator {
    *  Define any variables associated with a RunIterator object here.
    *  These variables MUST be private.
    */
-  private Run node;
-  private int size;
+  private RunList list;
+  private int index;
 
 
 
@@ -56,8 +56,8 @@ public class RunIterator implements Iterator {
   // implementation can construct a RunIterator that points to the first run of
   // the encoding.
   public RunIterator(RunList list) {
-    node = list.getHead().next;
-    size = list.getSize();
+    this.list = list;
+    index = 0;
   }
 
   /**
@@ -67,7 +67,7 @@ public class RunIterator implements Iterator {
    *  @return true if the iterator has more elements.
    */
   public boolean hasNext() {
-    return size > 0;
+    return index < list.getSize();
   }
 
   /**
@@ -98,9 +98,9 @@ public class RunIterator implements Iterator {
 
     // Replace the following line with your solution.
     if (hasNext()) {
-      int[] runArr = {node.length, node.red, node.green, node.blue};
-      node = node.next;
-      size--;
+      int[] runArr = {list.length(index), list.red(index),
+                      list.green(index), list.blue(index)};
+      index++;
       return runArr;
     } else {
       throw new NoSuchElementException();
@@ -0,0 +1,278 @@
+/* RunKernels.java */
+
+/**
+ *  The RunKernels class implements RunLengthEncoding.boxBlur() and
+ *  RunLengthEncoding.sobelEdges() directly on the runs of an encoding,
+ *  without decoding it to a PixImage.
+ *
+ *  The runs are cut into rows, and each output row is computed from the
+ *  segments of the rows above, at, and below it.  An output pixel depends only
+ *  on the 3x3 window around it, so wherever the window lies inside a single
+ *  segment of each of the three rows, every pixel of the stretch has the same
+ *  inputs and hence the same output.  Such a stretch is computed once and
+ *  emitted as one run; only the (at most two) pixels on each side of a segment
+ *  boundary, and the first and last pixels of the row, are computed one at a
+ *  time.  The work is therefore proportional to the number of runs plus the
+ *  height of the image, not to its area.
+ *
+ *  Each pixel is computed with the same arithmetic as BoxBlur and
+ *  SobelKernel, so the results are identical to PixImage's.
+ */
+
+class RunKernels {
+
+  /**
+   *  Row holds one row of an image as segments:  the column just past the
+   *  end of each segment, and its color packed as 0xRRGGBB.  "seg" is the
+   *  segment a kernel is looking at.
+   */
+  private static class Row {
+    int[] ends = new int[8];
+    int[] colors = new int[8];
+    int size;
+    int seg;
+
+    void add(int end, int color) {
+      if (size == ends.length) {
+        ends = java.util.Arrays.copyOf(ends, 2 * size);
+        colors = java.util.Arrays.copyOf(colors, 2 * size);
+      }
+      ends[size] = end;
+      colors[size] = color;
+      size++;
+    }
+
+    /**
+     *  seek() moves "seg" forward to the segment holding column x.  The
+     *  columns sought must not decrease until "seg" is reset.
+     */
+    void seek(int x) {
+      while (ends[seg] <= x) {
+        seg++;
+      }
+    }
+
+    /**
+     *  colorAt() returns the color of column x, which must not precede the
+     *  segment "seg".
+     */
+    int colorAt(int x) {
+      int i = seg;
+      while (ends[i] <= x) {
+        i++;
+      }
+      return colors[i];
+    }
+  }
+
+  /**
+   *  RowReader cuts the runs of a RunList into rows, from top to bottom.
+   */
+  private static class RowReader {
+    private final RunList list;
+    private final int width;
+    private int run;
+    private int pixel;
+
+    RowReader(RunList list, int width) {
+      this.list = list;
+      this.width = width;
+    }
+
+    /**
+     *  next() stores the next row in "row".
+     */
+    void next(Row row) {
+      row.size = 0;
+      int rowStart = pixel;
+      int rowEnd = pixel + width;
+      while (pixel < rowEnd) {
+        int runEnd = run + 1 < list.getSize() ? list.start(run + 1)
+                                              : list.getTotal();
+        int end = Math.min(runEnd, rowEnd);
+        row.add(end - rowStart, list.color(run));
+        pixel = end;
+        if (pixel == runEnd) {
+          run++;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Kernel computes one output pixel from the rows above, at, and below it.
+   */
+  private interface Kernel {
+    /**
+     *  pixel() returns the packed color of output pixel x.  Each row's "seg"
+     *  holds column max(x - 1, 0).  "above" or "below" is null where the row
+     *  does not exist.
+     */
+    int pixel(Row above, Row current, Row below, int x, int width);
+  }
+
+  /**
+   *  BLUR averages the valid neighbors of a pixel with truncating division,
+   *  as BoxBlur does.
+   */
+  private static final Kernel BLUR = new Kernel() {
+      public int pixel(Row above, Row current, Row below, int x, int width) {
+        int left = Math.max(x - 1, 0), right = Math.min(x + 1, width - 1);
+        int red = 0, green = 0, blue = 0, count = 0;
+        for (int r = 0; r < 3; r++) {
+          Row row = r == 0 ? above : r == 1 ? current : below;
+          if (row == null) {
+            continue;
+          }
+          for (int c = left; c <= right; c++) {
+            int color = row.colorAt(c);
+            red += color >> 16;
+            green += (color >> 8) & 0xff;
+            blue += color & 0xff;
+            count++;
+          }
+        }
+        return RunList.pack(red / count, green / count, blue / count);
+      }
+    };
+
+  /**
+   *  SOBEL computes the gray edge intensity of a pixel, as SobelKernel does.
+   *  The rows passed in are already clamped to the image.
+   */
+  private static final Kernel SOBEL = new Kernel() {
+      public int pixel(Row above, Row current, Row below, int x, int width) {
+        int left = Math.max(x - 1, 0), right = Math.min(x + 1, width - 1);
+        int energy = 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+          int sl = lane(above, left, shift) - lane(below, left, shift);
+          int sx = lane(above, x, shift) - lane(below, x, shift);
+          int sr = lane(above, right, shift) - lane(below, right, shift);
+          int tl = lane(above, left, shift) + 2 * lane(current, left, shift) +
+                   lane(below, left, shift);
+          int tr = lane(above, right, shift) +
+                   2 * lane(current, right, shift) + lane(below, right, shift);
+          int gx = sl + 2 * sx + sr;
+          int gy = tl - tr;
+          energy += gx * gx + gy * gy;
+        }
+        int g = SobelKernel.gray(energy);
+        return RunList.pack(g, g, g);
+      }
+    };
+
+  /**
+   *  lane() returns one color intensity of column x of a row.
+   */
+  private static int lane(Row row, int x, int shift) {
+    return (row.colorAt(x) >> shift) & 0xff;
+  }
+
+  /**
+   *  filterRow() computes one output row and appends it to "out".
+   */
+  private static void filterRow(Row above, Row current, Row below, int width,
+                                Kernel kernel, RunList out) {
+    current.seg = 0;
+    if (above != null) {
+      above.seg = 0;
+    }
+    if (below != null) {
+      below.seg = 0;
+    }
+
+    int x = 0;
+    while (x < width) {
+      int left = Math.max(x - 1, 0);
+      current.seek(left);
+      int end = current.ends[current.seg];
+      if (above != null) {
+        above.seek(left);
+        end = Math.min(end, above.ends[above.seg]);
+      }
+      if (below != null) {
+        below.seek(left);
+        end = Math.min(end, below.ends[below.seg]);
+      }
+
+      int color = kernel.pixel(above, current, below, x, width);
+      // Pixels x...stretch - 1 all have windows inside the segments holding
+      // column x - 1, so they share this pixel's output.
+      int stretch = x + 1;
+      if (x > 0) {
+        stretch = Math.max(stretch, Math.min(end - 1, width - 1));
+      }
+      out.mergeEnd(color, stretch - x);
+      x = stretch;
+    }
+  }
+
+  /**
+   *  blurOnce() performs one iteration of box blurring on a list of runs.
+   */
+  private static RunList blurOnce(RunList list, int width, int height) {
+    RunList out = new RunList();
+    RowReader reader = new RowReader(list, width);
+    Row above = new Row(), current = new Row(), below = new Row();
+    reader.next(current);
+    for (int y = 0; y < height; y++) {
+      if (y + 1 < height) {
+        reader.next(below);
+      }
+      filterRow(y > 0 ? above : null, current, y + 1 < height ? below : null,
+                width, BLUR, out);
+      Row recycled = above;
+      above = current;
+      current = below;
+      below = recycled;
+    }
+    return out;
+  }
+
+  /**
+   *  boxBlur() returns numIterations iterations of box blurring of a list of
+   *  runs holding a width x height image, as a new list.
+   *
+   *  @param list the runs of the image, which are not changed.
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param numIterations the number of iterations (at least one).
+   *  @return the runs of the blurred image.
+   */
+  static RunList boxBlur(RunList list, int width, int height,
+                         int numIterations) {
+    for (int i = 0; i < numIterations; i++) {
+      list = blurOnce(list, width, height);
+    }
+    return list;
+  }
+
+  /**
+   *  sobelEdges() returns the grayscale edge image of a list of runs holding
+   *  a width x height image, as a new list.
+   *
+   *  @param list the runs of the image, which are not changed.
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @return the runs of the edge image.
+   */
+  static RunList sobelEdges(RunList list, int width, int height) {
+    RunList out = new RunList();
+    RowReader reader = new RowReader(list, width);
+    Row above = new Row(), current = new Row(), below = new Row();
+    reader.next(current);
+    for (int y = 0; y < height; y++) {
+      if (y + 1 < height) {
+        reader.next(below);
+      }
+      // Missing rows are replaced by the row itself.
+      filterRow(y > 0 ? above : current, current,
+                y + 1 < height ? below : current, width, SOBEL, out);
+      Row recycled = above;
+      above = current;
+      current = below;
+      below = recycled;
+    }
+    return out;
+  }
+}
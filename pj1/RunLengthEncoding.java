@@ -21,6 +21,9 @@
  *  See the README file accompanying this project for additional details.
  */
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Iterator;
 
 public class RunLengthEncoding implements Iterable {
@@ -32,6 +35,15 @@ public class RunLengthEncoding implements Iterable {
   private int width, height;
   private RunList list;
 
+  /**
+   *  validation is true if the constructors and the editing methods should
+   *  validate the encoding after every change (see setValidation()).  It starts
+   *  out as the value of the system property "rle.validate", and is false
+   *  unless that property is "true".
+   */
+  private static volatile boolean validation =
+    Boolean.getBoolean("rle.validate");
+
 
 
   /**
@@ -51,7 +63,10 @@ public class RunLengthEncoding implements Iterable {
     this.width = width;
     this.height = height;
     list = new RunList();
-    list.insertEnd(0, 0, 0, width * height);
+    if (width * height > 0) {
+      list.insertEnd(0, 0, 0, width * height);
+    }
+    validate();
   }
 
   /**
@@ -73,6 +88,8 @@ public class RunLengthEncoding implements Iterable {
    *  0...255.  The sum of all the elements of the runLengths array should be
    *  width * height.  (Feel free to quit with an error message if any of these
    *  conditions are not met--though we won't be testing that.)
+   *
+   *  @throws IllegalArgumentException if an intensity is outside 0...255.
    */
 
   public RunLengthEncoding(int width, int height, int[] red, int[] green,
@@ -81,8 +98,25 @@ public class RunLengthEncoding implements Iterable {
     this.height = height;
     list = new RunList();
     for (int i = 0; i < red.length; i++) {
+      if (!RunList.isColor(red[i], green[i], blue[i])) {
+        throw new IllegalArgumentException("Run " + i + " has color (" +
+                                           red[i] + ", " + green[i] + ", " +
+                                           blue[i] + ").");
+      }
       list.insertEnd(red[i], green[i], blue[i], runLengths[i]);
     }
+    validate();
+  }
+
+  /**
+   *  RunLengthEncoding() wraps a RunList holding the runs of a width x height
+   *  image.  The list becomes part of the encoding.
+   */
+  RunLengthEncoding(int width, int height, RunList list) {
+    this.width = width;
+    this.height = height;
+    this.list = list;
+    validate();
   }
 
   /**
@@ -117,6 +151,115 @@ public class RunLengthEncoding implements Iterable {
     return new RunIterator(list);
   }
 
+  /**
+   *  cursor() returns a newly created RunCursor positioned before the first
+   *  run of this RunLengthEncoding.  Unlike iterator(), walking the runs with
+   *  a cursor allocates nothing per run.
+   *
+   *  @return a newly created RunCursor for this RunLengthEncoding.
+   */
+  public RunCursor cursor() {
+    return new RunCursor(list);
+  }
+
+  /**
+   *  distinctColors() returns the colors of the runs, packed as 0xRRGGBB and
+   *  sorted, without duplicates, or null if there are more than "max" of
+   *  them.
+   */
+  int[] distinctColors(int max) {
+    // Colors already seen are kept, plus one, in a hash table at most an
+    // eighth full, so most runs cost a single probe.
+    int[] seen = new int[Integer.highestOneBit(Math.max(max, 1)) << 3];
+    int mask = seen.length - 1;
+    int[] colors = new int[max];
+    int count = 0;
+    for (int r = 0; r < list.getSize(); r++) {
+      int color = list.color(r);
+      int h = (color * 0x9e3779b1) >>> 16 & mask;
+      while (seen[h] != 0 && seen[h] != color + 1) {
+        h = (h + 1) & mask;
+      }
+      if (seen[h] == 0) {
+        if (count == max) {
+          return null;
+        }
+        seen[h] = color + 1;
+        colors[count++] = color;
+      }
+    }
+    colors = java.util.Arrays.copyOf(colors, count);
+    java.util.Arrays.sort(colors);
+    return colors;
+  }
+
+  /**
+   *  writeTo() writes this run-length encoding to a stream in a compact
+   *  binary format (see RunLengthFormat), which readFrom() reads back.
+   *  The stream is flushed but not closed.
+   *
+   *  @param out the stream to write to.
+   *  @param checksum true to add a CRC-32 checksum, which readFrom() checks.
+   *  @throws IOException if the stream cannot be written.
+   */
+  public void writeTo(OutputStream out, boolean checksum) throws IOException {
+    RunLengthFormat.write(this, out, checksum);
+  }
+
+  /**
+   *  readFrom() reads a run-length encoding written by writeTo().  It reads
+   *  exactly the bytes that writeTo() wrote, so several encodings can be
+   *  read from one stream.
+   *
+   *  @param in the stream to read from.
+   *  @return the run-length encoding.
+   *  @throws IOException if the stream cannot be read, or does not hold a
+   *  valid encoding.
+   */
+  public static RunLengthEncoding readFrom(InputStream in)
+    throws IOException {
+    return RunLengthFormat.read(in);
+  }
+
+  /**
+   *  boxBlur() returns a blurred version of this run-length encoding, exactly
+   *  as toPixImage().boxBlur(numIterations) would, but works on the runs
+   *  directly (see RunKernels).  Pixels are computed only near run
+   *  boundaries, so a mostly uniform image such as a mask is blurred in time
+   *  proportional to its runs rather than its area.
+   *
+   *  @param numIterations the number of iterations of box blurring.
+   *  @return a blurred version of this encoding, or this encoding itself if
+   *  numIterations is zero or negative.
+   */
+  public RunLengthEncoding boxBlur(int numIterations) {
+    if (numIterations <= 0) {
+      return this;
+    }
+    if (width * height == 0) {
+      // RunKernels reads whole rows, and an empty image has no runs to read.
+      return new RunLengthEncoding(width, height);
+    }
+    return new RunLengthEncoding(width, height,
+                                 RunKernels.boxBlur(list, width, height,
+                                                    numIterations));
+  }
+
+  /**
+   *  sobelEdges() returns the grayscale edge image of this run-length
+   *  encoding, exactly as toPixImage().sobelEdges() would, but works on the
+   *  runs directly (see RunKernels).
+   *
+   *  @return a grayscale encoding representing the edges of this image.
+   */
+  public RunLengthEncoding sobelEdges() {
+    if (width * height == 0) {
+      return new RunLengthEncoding(width, height);
+    }
+    return new RunLengthEncoding(width, height,
+                                 RunKernels.sobelEdges(list, width, height));
+  }
+
   /**
    *  toPixImage() converts a run-length encoding of an image into a PixImage
    *  object.
@@ -124,26 +267,79 @@ public class RunLengthEncoding implements Iterable {
    *  @return the PixImage that this RunLengthEncoding encodes.
    */
   public PixImage toPixImage() {
-    PixImage img = new PixImage(width, height);
-    int i = 0, j = 0;
-    Run head = list.getHead().next;
-    int size = list.getSize();
-
-    while (size > 0) {
-      int len = head.length;
-      while (len > 0) {
-        img.setPixel(i, j, (short) head.red, (short) head.green, (short) head.blue);
-        len--;
-        i++;
-        if (i == width) {
-          i = 0;
-          j++;
+    // The pixels of a run are contiguous in PixImage's interleaved row-major
+    // buffer, even when the run spans several rows, so each run is filled in
+    // one piece.  The new buffer is already black, so black runs cost nothing.
+    byte[] pixels = new byte[width * height * 3];
+    int at = 0;
+    RunCursor cursor = cursor();
+    while (cursor.advance()) {
+      int end = at + cursor.length() * 3;
+      int red = cursor.red(), green = cursor.green(), blue = cursor.blue();
+      if (red == green && red == blue) {
+        if (red != 0) {
+          java.util.Arrays.fill(pixels, at, end, (byte) red);
         }
+      } else {
+        fillPattern(pixels, at, end, red, green, blue);
+      }
+      at = end;
+    }
+    return new PixImage(width, height, pixels);
+  }
+
+  /**
+   *  crop() decodes only the rectangle of the image with top left corner
+   *  (x, y) and the given width and height, as a PixImage.  Each row of the
+   *  rectangle costs one binary search for its first run, plus the runs it
+   *  crosses, so a small rectangle of a huge encoding is cheap.
+   *
+   *  @param x the x-coordinate of the left column of the rectangle.
+   *  @param y the y-coordinate of the top row of the rectangle.
+   *  @param regionWidth the width of the rectangle.
+   *  @param regionHeight the height of the rectangle.
+   *  @return a regionWidth x regionHeight PixImage.
+   *  @throws IllegalArgumentException if the rectangle is not inside the
+   *  image.
+   */
+  public PixImage crop(int x, int y, int regionWidth, int regionHeight) {
+    if (x < 0 || y < 0 || regionWidth < 0 || regionHeight < 0 ||
+        regionWidth > width - x || regionHeight > height - y) {
+      throw new IllegalArgumentException("The " + regionWidth + "x" +
+                                         regionHeight + " region at (" + x +
+                                         ", " + y + ") is not inside the " +
+                                         width + "x" + height + " image.");
+    }
+    byte[] pixels = new byte[regionWidth * regionHeight * 3];
+    for (int j = 0; j < regionHeight && regionWidth > 0; j++) {
+      int pixel = (y + j) * width + x;
+      int end = pixel + regionWidth;
+      int at = j * regionWidth * 3;
+      for (int run = list.find(pixel); pixel < end; run++) {
+        int next = Math.min(list.start(run) + list.length(run), end);
+        fillPattern(pixels, at, at + (next - pixel) * 3, list.red(run),
+                    list.green(run), list.blue(run));
+        at += (next - pixel) * 3;
+        pixel = next;
       }
-      head = head.next;
-      size--;
     }
-    return img;
+    return new PixImage(regionWidth, regionHeight, pixels);
+  }
+
+  /**
+   *  fillPattern() fills pixels[start...end - 1] with a repeating color.  It
+   *  writes the first pixel and then doubles the filled part with
+   *  System.arraycopy(), so a long run takes O(log length) copies.
+   */
+  private static void fillPattern(byte[] pixels, int start, int end, int red,
+                                  int green, int blue) {
+    pixels[start] = (byte) red;
+    pixels[start + 1] = (byte) green;
+    pixels[start + 2] = (byte) blue;
+    for (int filled = 3; filled < end - start; filled *= 2) {
+      System.arraycopy(pixels, start, pixels, start + filled,
+                       Math.min(filled, end - start - filled));
+    }
   }
 
   /**
@@ -179,25 +375,38 @@ public class RunLengthEncoding implements Iterable {
     // at the end.
     width = image.getWidth();
     height = image.getHeight();
-    list = new RunList();
-    int red = image.getRed(0, 0), green = image.getGreen(0, 0), blue = image.getBlue(0, 0);
-    int length = 0;
+
+    // Scan each row's bytes directly, comparing packed colors.  The loop is
+    // branch-free:  every pixel is written to the next free slot of the run
+    // arrays, and the slot is kept (the run count advances) only if its
+    // color differs from the previous pixel's.  Photographs start a new run
+    // at most pixels, so a branch here would mispredict constantly.
+    int lanes = width * 3;
+    byte[] row = new byte[lanes];
+    int[] starts = new int[Math.max(64, width + 1)];
+    int[] colors = new int[starts.length];
+    int runs = 0;
+    int color = -1;
 
     for (int j = 0; j < height; j++) {
-      for (int i = 0; i < width; i++) {
-        if ((red == image.getRed(i, j)) && (green == image.getGreen(i, j)) && (blue == image.getBlue(i, j))) {
-          length++;
-        } else {
-          list.insertEnd(red, green, blue, length);
-          red = image.getRed(i, j);
-          green = image.getGreen(i, j);
-          blue = image.getBlue(i, j);
-          length = 1;
-        }
+      if (runs + width > starts.length) {
+        int capacity = Math.max(starts.length * 2, runs + width);
+        starts = java.util.Arrays.copyOf(starts, capacity);
+        colors = java.util.Arrays.copyOf(colors, capacity);
+      }
+      image.getRow(j, row, 0);
+      int pixel = j * width;
+      for (int i = 0; i < lanes; i += 3, pixel++) {
+        int c = ((row[i] & 0xff) << 16) | ((row[i + 1] & 0xff) << 8) |
+                (row[i + 2] & 0xff);
+        starts[runs] = pixel;
+        colors[runs] = c;
+        runs += c != color ? 1 : 0;
+        color = c;
       }
     }
-    list.insertEnd(red, green, blue, length);
-    check();
+    list = new RunList(starts, colors, runs, width * height);
+    validate();
   }
 
   /**
@@ -206,25 +415,70 @@ public class RunLengthEncoding implements Iterable {
    *  all run lengths does not equal the number of pixels in the image.
    */
   public void check() {
-    Run head = list.getHead().next;
+    verify(false);
+  }
+
+  /**
+   *  setValidation() turns validation on or off for all run-length encodings.
+   *  When it is on, the constructors, setPixel(), setPixels(), and fillRect()
+   *  walk the whole encoding after every change and throw an
+   *  IllegalStateException describing the first problem they find.  When it
+   *  is off (the default), they skip the walk, so an edit costs only the
+   *  edit.  check() is not affected.
+   *
+   *  @param on true to validate after every change.
+   */
+  public static void setValidation(boolean on) {
+    validation = on;
+  }
+
+  /**
+   *  validate() checks the encoding if validation is on.
+   */
+  private void validate() {
+    if (validation) {
+      verify(true);
+    }
+  }
+
+  /**
+   *  verify() finds the problems that check() reports.  If "strict" is true,
+   *  it throws an IllegalStateException describing the first one; otherwise
+   *  it prints check()'s message for each one.
+   */
+  private void verify(boolean strict) {
     int size = list.getSize();
     int length = 0;
 
-    while (size > 0) {
-      Run next = head.next;
-      if ((head.red == next.red) && (head.green == next.green) && (head.blue == next.blue)) {
-        System.out.println("Consecutive runs with the same RGB intensities!");
+    for (int i = 0; i < size; i++) {
+      if ((i + 1 < size) && (list.color(i) == list.color(i + 1))) {
+        report(strict, "Consecutive runs with the same RGB intensities!",
+               "runs " + i + " and " + (i + 1) + " both have color (" +
+               list.red(i) + ", " + list.green(i) + ", " + list.blue(i) +
+               ")");
       }
-      if (head.length < 1) {
-        System.out.println("Length smaller than one!");
+      if (list.length(i) < 1) {
+        report(strict, "Length smaller than one!",
+               "run " + i + " has length " + list.length(i));
       }
-      length += head.length;
-      head = head.next;
-      size--;
+      length += list.length(i);
     }
     if (length != width * height) {
-      System.out.println("Not equal to the product of width and height!");
+      report(strict, "Not equal to the product of width and height!",
+             "the runs cover " + length + " pixels, but the image is " +
+             width + "x" + height);
+    }
+  }
+
+  /**
+   *  report() prints a problem found by verify(), or throws it with its
+   *  details if "strict" is true.
+   */
+  private static void report(boolean strict, String message, String detail) {
+    if (strict) {
+      throw new IllegalStateException(message + "  (" + detail + ")");
     }
+    System.out.println(message);
   }
 
 
@@ -239,6 +493,9 @@ public class RunLengthEncoding implements Iterable {
    *  The updated run-length encoding should be compressed as much as possible;
    *  there should not be two consecutive runs with exactly the same RGB color.
    *
+   *  If any of the three color intensities is NOT in the range 0...255, then
+   *  this method does NOT change the encoding, just as PixImage.setPixel().
+   *
    *  @param x the x-coordinate of the pixel to modify.
    *  @param y the y-coordinate of the pixel to modify.
    *  @param red the new red intensity to store at coordinate (x, y).
@@ -248,69 +505,198 @@ public class RunLengthEncoding implements Iterable {
   public void setPixel(int x, int y, short red, short green, short blue) {
     // Your solution here, but you should probably leave the following line
     //   at the end.
-    int begin = 0, xyNum = x + y * width;
-    Run head = list.getHead().next;
-    int size = list.getSize();
+    // Runs are found by binary search, and split or merged in place; see
+    // RunList.  Merging a run into its predecessor is just deleting it.
+    if (!RunList.isColor(red, green, blue)) {
+      return;
+    }
+    int xyNum = x + y * width;
+    int color = RunList.pack(red, green, blue);
+    int run = list.find(xyNum);
+    if (list.color(run) == color) {
+      return;
+    }
 
-    while (size > 0) {
-      if ((xyNum >= begin) && (xyNum <= begin + head.length - 1)) {
-        break;
+    int begin = list.start(run);
+    int end = begin + list.length(run) - 1;
+    boolean joinPrev = (xyNum == begin) && (run > 0) &&
+                       (list.color(run - 1) == color);
+    boolean joinNext = (xyNum == end) && (run + 1 < list.getSize()) &&
+                       (list.color(run + 1) == color);
+
+    if (begin == end) {
+      if (joinPrev && joinNext) {
+        list.delete(run + 1);
+        list.delete(run);
+      } else if (joinPrev) {
+        list.delete(run);
+      } else if (joinNext) {
+        list.setColor(run, color);
+        list.delete(run + 1);
+      } else {
+        list.setColor(run, color);
+      }
+    } else if ((xyNum > begin) && (xyNum < end)) {
+      int oldColor = list.color(run);
+      list.insert(run + 1, xyNum, color);
+      list.insert(run + 2, xyNum + 1, oldColor);
+    } else if (xyNum == begin) {
+      list.setStart(run, xyNum + 1);
+      if (!joinPrev) {
+        list.insert(run, xyNum, color);
+      }
+    } else {
+      if (joinNext) {
+        list.setStart(run + 1, xyNum);
+      } else {
+        list.insert(run + 1, xyNum, color);
       }
-      begin += head.length;
-      head = head.next;
-      size--;
     }
 
-    int end = begin + head.length - 1;
+    validate();
+  }
 
-    if ((head.red == red) && (head.green == green) && (head.blue == blue)) {
-      return;
+
+  /**
+   *  setPixels() performs a batch of setPixel() operations:  for each i, it
+   *  stores the color (red[i], green[i], blue[i]) at (x[i], y[i]).  If the
+   *  same pixel is written more than once, the last write wins.  The result
+   *  is the same as calling setPixel() for each write in order, but the runs
+   *  are rebuilt in a single pass over the encoding, so a batch costs
+   *  O(runs + writes) rather than a search per write.  Writes sorted in
+   *  row-major order are applied without sorting them first.
+   *
+   *  @param x the x-coordinates of the pixels to modify.
+   *  @param y the y-coordinates of the pixels to modify.
+   *  @param red the new red intensities.
+   *  @param green the new green intensities.
+   *  @param blue the new blue intensities.
+   *  @throws IllegalArgumentException if the arrays have different lengths,
+   *  a coordinate lies outside the image, or an intensity is outside
+   *  0...255.  The encoding is unchanged if an exception is thrown.
+   */
+  public void setPixels(int[] x, int[] y, short[] red, short[] green,
+                        short[] blue) {
+    int n = x.length;
+    if (y.length != n || red.length != n || green.length != n ||
+        blue.length != n) {
+      throw new IllegalArgumentException("Arrays have different lengths.");
     }
 
-    if (head.length == 1) {
-      if ((red == head.prev.red) && (green == head.prev.green) && (blue == head.prev.blue)) {
-        if ((red == head.next.red) && (green == head.next.green) && (blue == head.next.blue)) {
-          head.prev.length = head.prev.length + 1 + head.next.length;
-          list.delete(head);
-          list.delete(head.next);
-          return;
-        } else {
-          head.prev.length++;
-          list.delete(head);
-        }
-      } else if ((red == head.next.red) && (green == head.next.green) && (blue == head.next.blue)) {
-        head.next.length++;
-        list.delete(head);
-      } else {
-        list.insertAfter(head, red, green, blue, 1);
-        list.delete(head);
+    // Sort the writes by pixel index, then by position in the batch.
+    long[] keys = new long[n];
+    boolean sorted = true;
+    for (int i = 0; i < n; i++) {
+      if (x[i] < 0 || x[i] >= width || y[i] < 0 || y[i] >= height) {
+        throw new IllegalArgumentException("(" + x[i] + ", " + y[i] +
+                                           ") is outside the image.");
       }
+      if (!RunList.isColor(red[i], green[i], blue[i])) {
+        throw new IllegalArgumentException("Write " + i + " has color (" +
+                                           red[i] + ", " + green[i] + ", " +
+                                           blue[i] + ").");
+      }
+      keys[i] = ((long) (x[i] + y[i] * width) << 32) | i;
+      sorted &= i == 0 || keys[i] > keys[i - 1];
+    }
+    if (!sorted) {
+      java.util.Arrays.sort(keys);
+    }
+
+    int[] starts = new int[n];
+    int[] lengths = new int[n];
+    int[] colors = new int[n];
+    int count = 0;
+    for (int k = 0; k < n; k++) {
+      int pixel = (int) (keys[k] >>> 32);
+      if (k + 1 < n && (int) (keys[k + 1] >>> 32) == pixel) {
+        continue;                           // A later write wins.
+      }
+      int i = (int) keys[k];
+      starts[count] = pixel;
+      lengths[count] = 1;
+      colors[count] = RunList.pack(red[i], green[i], blue[i]);
+      count++;
+    }
+    applySpans(starts, lengths, colors, count);
+  }
+
+  /**
+   *  fillRect() sets every pixel of a rectangle to one color.  The part of
+   *  the rectangle outside the image is ignored.  Like setPixels(), it
+   *  rebuilds the runs in a single pass.
+   *
+   *  @param x the x-coordinate of the left column of the rectangle.
+   *  @param y the y-coordinate of the top row of the rectangle.
+   *  @param w the width of the rectangle.
+   *  @param h the height of the rectangle.
+   *  @param red the new red intensity.
+   *  @param green the new green intensity.
+   *  @param blue the new blue intensity.
+   *  @throws IllegalArgumentException if an intensity is outside 0...255.
+   */
+  public void fillRect(int x, int y, int w, int h, short red, short green,
+                       short blue) {
+    if (!RunList.isColor(red, green, blue)) {
+      throw new IllegalArgumentException("(" + red + ", " + green + ", " +
+                                         blue + ") is not a color.");
+    }
+    int x0 = Math.max(x, 0), x1 = (int) Math.min((long) x + w, width);
+    int y0 = Math.max(y, 0), y1 = (int) Math.min((long) y + h, height);
+    if (x0 >= x1 || y0 >= y1) {
+      return;
+    }
+    int color = RunList.pack(red, green, blue);
+    if (x0 == 0 && x1 == width) {
+      // Full rows are one contiguous span.
+      applySpans(new int[] { y0 * width }, new int[] { (y1 - y0) * width },
+                 new int[] { color }, 1);
       return;
     }
+    int count = y1 - y0;
+    int[] starts = new int[count];
+    int[] lengths = new int[count];
+    int[] colors = new int[count];
+    for (int i = 0; i < count; i++) {
+      starts[i] = (y0 + i) * width + x0;
+      lengths[i] = x1 - x0;
+      colors[i] = color;
+    }
+    applySpans(starts, lengths, colors, count);
+  }
 
-    if ((xyNum > begin) && (xyNum < end)) {
-      head.length = xyNum - begin;
-      list.insertAfter(head, red, green, blue, 1);
-      list.insertAfter(head.next, head.red, head.green, head.blue, end - xyNum);
-    } else if (xyNum == begin) {
-      if ((red == head.prev.red) && (green == head.prev.green) && (blue == head.prev.blue)) {
-        head.prev.length++;
-        list.deleteOneLength(head);
-      } else {
-        list.insertAfter(head.prev, red, green, blue, 1);
-        list.deleteOneLength(head);
+  /**
+   *  applySpans() overwrites spans of pixels with new colors.  Span i covers
+   *  pixels starts[i]...starts[i] + lengths[i] - 1 in row-major order; the
+   *  spans must be sorted and must not overlap.  It sweeps once through the
+   *  old runs and the spans together, appending to a new run list and merging
+   *  neighboring runs of the same color, then validates the result once.
+   */
+  private void applySpans(int[] starts, int[] lengths, int[] colors,
+                          int count) {
+    RunList result = new RunList();
+    int total = list.getTotal();
+    int pos = 0, run = 0;
+    for (int i = 0; i <= count; i++) {
+      int spanStart = i < count ? starts[i] : total;
+      // Copy the old runs, or the parts of them, that lie before the span.
+      while (pos < spanStart) {
+        int runEnd = list.start(run) + list.length(run);
+        if (runEnd <= pos) {
+          run++;
+          continue;
+        }
+        int end = Math.min(runEnd, spanStart);
+        result.mergeEnd(list.color(run), end - pos);
+        pos = end;
       }
-    } else {
-      if ((red == head.next.red) && (green == head.next.green) && (blue == head.next.blue)) {
-        head.next.length++;
-        list.deleteOneLength(head);
-      } else {
-        list.insertAfter(head, red, green, blue, 1);
-        list.deleteOneLength(head);
+      if (i < count) {
+        result.mergeEnd(colors[i], lengths[i]);
+        pos += lengths[i];
       }
     }
-
-    check();
+    list = result;
+    validate();
   }
 
 
@@ -376,10 +762,29 @@ public class RunLengthEncoding implements Iterable {
     rle.check();
   }
 
+  /**
+   * sameRuns() returns true if two run-length encodings have the same runs.
+   */
+  private static boolean sameRuns(RunLengthEncoding rle1,
+                                  RunLengthEncoding rle2) {
+    RunCursor c1 = rle1.cursor(), c2 = rle2.cursor();
+    boolean more1, more2;
+    while ((more1 = c1.advance()) & (more2 = c2.advance())) {
+      if (c1.length() != c2.length() || c1.red() != c2.red() ||
+          c1.green() != c2.green() || c1.blue() != c2.blue()) {
+        return false;
+      }
+    }
+    return !more1 && !more2;
+  }
+
   /**
    * main() runs a series of tests of the run-length encoding code.
    */
   public static void main(String[] args) {
+    // Validate after every change, so a bad edit fails loudly.
+    setValidation(true);
+
     // Be forwarned that when you write arrays directly in Java as below,
     // each "row" of text is a column of your image--the numbers get
     // transposed.
@@ -550,5 +955,293 @@ public class RunLengthEncoding implements Iterable {
     image4.setPixel(1, 0, (short) 1, (short) 1, (short) 1);
     doTest(rle4.toPixImage().equals(image4),
            "Setting RLE4[1][0] = 1 fails.");
+
+
+    System.out.println("Testing many random setPixel() calls on a 23x17 " +
+                       "encoding.");
+    java.util.Random random = new java.util.Random(8);
+    PixImage image5 = new PixImage(23, 17);
+    RunLengthEncoding rle5 = new RunLengthEncoding(image5);
+    boolean same = true;
+    for (int i = 0; i < 3000; i++) {
+      int x = random.nextInt(23), y = random.nextInt(17);
+      short v = (short) (random.nextInt(3) * 100);
+      rle5.setPixel(x, y, v, v, (short) (255 - v));
+      image5.setPixel(x, y, v, v, (short) (255 - v));
+      if (i % 100 == 99) {
+        // The runs of a maximally compressed encoding are unique.
+        same &= sameRuns(rle5, new RunLengthEncoding(image5));
+      }
+    }
+    doTest(same && rle5.toPixImage().equals(image5),
+           "Random setPixel() calls on RLE5 fail.");
+
+    System.out.println("Testing setPixels() and fillRect() on a 23x17 " +
+                       "encoding.");
+    same = true;
+    for (int batch = 0; batch < 40; batch++) {
+      int n = random.nextInt(60);
+      int[] xs = new int[n], ys = new int[n];
+      short[] reds = new short[n], greens = new short[n], blues = new short[n];
+      for (int i = 0; i < n; i++) {
+        xs[i] = random.nextInt(23);
+        ys[i] = random.nextInt(17);
+        reds[i] = greens[i] = (short) (random.nextInt(3) * 100);
+        blues[i] = (short) (255 - reds[i]);
+        image5.setPixel(xs[i], ys[i], reds[i], greens[i], blues[i]);
+      }
+      rle5.setPixels(xs, ys, reds, greens, blues);
+      same &= sameRuns(rle5, new RunLengthEncoding(image5));
+
+      int x = random.nextInt(30) - 4, y = random.nextInt(24) - 4;
+      int w = random.nextInt(batch % 4 == 0 ? 40 : 8);
+      int h = random.nextInt(8);
+      short v = (short) (random.nextInt(3) * 100);
+      rle5.fillRect(x, y, w, h, v, v, (short) (255 - v));
+      for (int j = Math.max(y, 0); j < Math.min(y + h, 17); j++) {
+        for (int i = Math.max(x, 0); i < Math.min(x + w, 23); i++) {
+          image5.setPixel(i, j, v, v, (short) (255 - v));
+        }
+      }
+      same &= sameRuns(rle5, new RunLengthEncoding(image5));
+    }
+    doTest(same && rle5.toPixImage().equals(image5),
+           "setPixels() or fillRect() on RLE5 fails.");
+
+    System.out.println("Testing that cursor() and iterator() agree.");
+    RunIterator it = rle5.iterator();
+    RunCursor cursor = rle5.cursor();
+    same = true;
+    while (cursor.advance()) {
+      int[] run = it.hasNext() ? it.next() : new int[4];
+      same &= run[0] == cursor.length() && run[1] == cursor.red() &&
+              run[2] == cursor.green() && run[3] == cursor.blue();
+    }
+    doTest(same && !it.hasNext() && !cursor.advance(),
+           "cursor() and iterator() return different runs for RLE5.");
+
+    System.out.println("Testing writing RLE5 to a TIFF file and reading it " +
+                       "back as runs.");
+    same = false;
+    try {
+      java.io.File file = java.io.File.createTempFile("rle5", ".tiff");
+      file.deleteOnExit();
+      TIFFEncoder.setRowsPerStrip(5);
+      TIFFEncoder.writeTIFF(rle5, file.getPath());
+      TIFFEncoder.setRowsPerStrip(0);
+      same = sameRuns(rle5, TIFFDecoder.readRunLengthEncoding(file.getPath(),
+                                                              false));
+    } catch (java.io.IOException e) {
+      System.out.println(e);
+    }
+    doTest(same, "RLE5 read back from a TIFF file has different runs.");
+
+    System.out.println("Testing that malformed TIFF fields are rejected.");
+    int rejected = 0;
+    try {
+      java.io.File file = java.io.File.createTempFile("malformed", ".tiff");
+      file.deleteOnExit();
+      // A zero RowsPerStrip, a count too large for any file, and a
+      // 50000x50000 image, whose pixels cannot be numbered with ints.
+      for (int k = 0; k < 3; k++) {
+        TIFFEncoder.writeTIFF(rle5, file.getPath());
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw");
+        raf.seek(8);  // The IFD follows the 8-byte header.
+        int entries = raf.readShort();
+        for (int i = 0; i < entries; i++) {
+          raf.seek(10 + 12 * i);
+          int tag = raf.readShort();
+          if (tag == 278 && k < 2) {
+            raf.seek(10 + 12 * i + (k == 0 ? 8 : 4));
+            raf.writeInt(k == 0 ? 0 : -1);
+          } else if ((tag == 256 || tag == 257) && k == 2) {
+            raf.seek(10 + 12 * i + 8);
+            raf.writeShort(50000);
+          }
+        }
+        raf.close();
+        try {
+          TIFFDecoder.readRunLengthEncoding(file.getPath(), false);
+        } catch (java.io.IOException e) {
+          // The huge image must be refused up front, not as truncated.
+          if (k < 2 || e.getMessage().contains("too large")) {
+            rejected++;
+          }
+        }
+      }
+    } catch (java.io.IOException e) {
+      System.out.println(e);
+    }
+    doTest(rejected == 3, "A malformed TIFF field is not an IOException.");
+
+    System.out.println("Testing that failed TIFF writes leave no file.");
+    boolean clean = false;
+    try {
+      java.io.File file = java.io.File.createTempFile("failed", ".tiff");
+      file.delete();
+      try {
+        new TIFFEncoder.RowWriter(file.getPath(), 40000, 40000, false);
+      } catch (java.io.IOException e) {
+        clean = !file.exists();
+      }
+      TIFFEncoder.RowWriter writer =
+        new TIFFEncoder.RowWriter(file.getPath(), 1, 2,
+                                  TIFFEncoder.grayPalette());
+      try {
+        writer.writeRow(new byte[] { 9, 9, 9 }, 0);
+        writer.writeRow(new byte[] { 1, 2, 3 }, 0);
+      } catch (IllegalArgumentException e) {
+        writer.abort();
+        clean &= !file.exists();
+      }
+    } catch (java.io.IOException e) {
+      System.out.println(e);
+      clean = false;
+    }
+    doTest(clean, "A failed TIFF write left a file behind.");
+
+    System.out.println("Testing writeTo() and readFrom() on RLE5, an " +
+                       "encoding with over 256 colors, and empty images.");
+    PixImage image7 = new PixImage(64, 12);
+    for (int j = 0; j < 12; j++) {
+      for (int i = 0; i < 64; i++) {
+        int c = random.nextInt(4) == 0 ? 0 : (i / 2) * 70001 + j * 997 + 1;
+        image7.setPixel(i, j, (short) ((c >> 16) & 0xff),
+                        (short) ((c >> 8) & 0xff), (short) (c & 0xff));
+      }
+    }
+    RunLengthEncoding rle7 = new RunLengthEncoding(image7);
+    same = false;
+    boolean corrupt = false;
+    try {
+      java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+      rle5.writeTo(bytes, true);
+      rle7.writeTo(bytes, false);
+      rle7.writeTo(bytes, true);
+      byte[] data = bytes.toByteArray();
+      java.io.InputStream in = new java.io.ByteArrayInputStream(data);
+      same = sameRuns(rle5, readFrom(in)) && sameRuns(rle7, readFrom(in)) &&
+             sameRuns(rle7, readFrom(in)) && in.read() < 0;
+      data[12] ^= 1;
+      try {
+        readFrom(new java.io.ByteArrayInputStream(data));
+      } catch (java.io.IOException e) {
+        corrupt = true;
+      }
+      // Switching the checksum off and then damaging the palette must be
+      // caught too.
+      data = bytes.toByteArray();
+      data[4] &= ~2;
+      data[12] ^= 1;
+      try {
+        readFrom(new java.io.ByteArrayInputStream(data));
+        corrupt = false;
+      } catch (java.io.IOException e) {
+        // Expected.
+      }
+      RunLengthEncoding[] empty = { new RunLengthEncoding(5, 0),
+                                    new RunLengthEncoding(0, 0),
+                                    new RunLengthEncoding(new PixImage(0, 3)) };
+      for (RunLengthEncoding e : empty) {
+        bytes.reset();
+        e.writeTo(bytes, true);
+        RunLengthEncoding back =
+          readFrom(new java.io.ByteArrayInputStream(bytes.toByteArray()));
+        same &= back.getWidth() == e.getWidth() &&
+                back.getHeight() == e.getHeight() && !back.cursor().advance();
+      }
+    } catch (java.io.IOException e) {
+      System.out.println(e);
+      same = false;
+    }
+    doTest(same, "readFrom() does not return the encodings writeTo() wrote.");
+    doTest(corrupt, "readFrom() accepts a corrupted encoding.");
+
+    System.out.println("Testing boxBlur() and sobelEdges() on RLE5, RLE7, " +
+                       "and a mask.");
+    PixImage mask = new PixImage(40, 30);
+    for (int j = 0; j < 30; j++) {
+      for (int i = 0; i < 40; i++) {
+        short v = (short) ((i - 20) * (i - 20) + (j - 12) * (j - 12) < 81 ||
+                           (i > 30 && j > 25) ? 255 : 0);
+        mask.setPixel(i, j, v, v, v);
+      }
+    }
+    RunLengthEncoding[] filtered = { rle5, rle7,
+                                     new RunLengthEncoding(mask),
+                                     new RunLengthEncoding(1, 1,
+                                                           new int[] { 9 },
+                                                           new int[] { 8 },
+                                                           new int[] { 7 },
+                                                           new int[] { 1 }),
+                                     new RunLengthEncoding(5, 0) };
+    for (int k = 0; k < filtered.length; k++) {
+      PixImage image = filtered[k].toPixImage();
+      doTest(filtered[k].boxBlur(3).toPixImage().equals(image.boxBlur(3)),
+             "boxBlur() of encoding " + k + " differs from PixImage's.");
+      doTest(filtered[k].sobelEdges().toPixImage()
+             .equals(image.sobelEdges()),
+             "sobelEdges() of encoding " + k + " differs from PixImage's.");
+    }
+
+    System.out.println("Testing that out-of-range colors are ignored or " +
+                       "rejected.");
+    RunLengthEncoding gray = new RunLengthEncoding(4, 2);
+    gray.setPixel(1, 1, (short) 0, (short) 300, (short) 0);
+    gray.setPixel(2, 1, (short) -1, (short) 0, (short) 0);
+    boolean refused = false;
+    try {
+      new RunLengthEncoding(1, 1, new int[] { 0 }, new int[] { 256 },
+                            new int[] { 0 }, new int[] { 1 });
+    } catch (IllegalArgumentException e) {
+      refused = true;
+    }
+    short[] bad = { 0, 255, -5 };
+    int failures = 0;
+    try {
+      gray.setPixels(new int[] { 0, 1, 2 }, new int[] { 0, 0, 0 }, bad, bad,
+                     bad);
+    } catch (IllegalArgumentException e) {
+      failures++;
+    }
+    try {
+      gray.fillRect(0, 0, 2, 2, (short) 0, (short) 0, (short) 999);
+    } catch (IllegalArgumentException e) {
+      failures++;
+    }
+    doTest(gray.toPixImage().equals(new PixImage(4, 2)) && refused &&
+           failures == 2, "An out-of-range color was stored.");
+
+    System.out.println("Testing that validation throws on a bad encoding.");
+    int[] sevens = { 7, 7, 9 };
+    boolean thrown = false;
+    try {
+      new RunLengthEncoding(3, 1, sevens, sevens, sevens,
+                            new int[] { 1, 1, 1 });
+    } catch (IllegalStateException e) {
+      thrown = e.getMessage().indexOf("runs 0 and 1") >= 0;
+    }
+    doTest(thrown, "Validation did not report consecutive runs 0 and 1.");
+    thrown = false;
+    try {
+      new RunLengthEncoding(3, 1, new int[] { 7 }, new int[] { 7 },
+                            new int[] { 7 }, new int[] { 2 });
+    } catch (IllegalStateException e) {
+      thrown = e.getMessage().indexOf("cover 2 pixels") >= 0;
+    }
+    doTest(thrown, "Validation did not report a bad run-length sum.");
+    setValidation(false);
+    RunLengthEncoding rle6 = new RunLengthEncoding(3, 1, sevens, sevens,
+                                                   sevens,
+                                                   new int[] { 1, 1, 1 });
+    setValidation(true);
+    thrown = false;
+    try {
+      rle6.setPixel(2, 0, (short) 8, (short) 8, (short) 8);
+    } catch (IllegalStateException e) {
+      thrown = e.getMessage().indexOf("runs 0 and 1") >= 0;
+    }
+    doTest(thrown, "Validation did not report consecutive runs 0 and 1 " +
+           "after setPixel().");
   }
 }
@@ -0,0 +1,432 @@
+/* RunLengthFormat.java */
+
+/**
+ *  The RunLengthFormat class reads and writes run-length encodings in a
+ *  compact binary format, for caching them between programs far more
+ *  cheaply than a TIFF round trip.  Use RunLengthEncoding.writeTo() and
+ *  RunLengthEncoding.readFrom().
+ *
+ *  A record is the four bytes "RLE1", a flags byte (PALETTE and/or
+ *  CHECKSUM), the flags byte's bitwise complement, and then the payload,
+ *  split into blocks:  each block is a varint byte count followed by that
+ *  many bytes, and a count of zero ends the record.  If CHECKSUM is set, the
+ *  record ends with the CRC-32 of the six header bytes and the payload as
+ *  four big-endian bytes.  The complement is always checked, so a damaged
+ *  flags byte cannot switch the checksum off unnoticed.  The payload is
+ *
+ *      width, height, number of runs      (varints)
+ *      palette    (if PALETTE) a varint count n, then n colors as red,
+ *                 green, and blue bytes
+ *      runs       with a palette, each run is one varint:  its length minus
+ *                 one, shifted left past the bits of its palette index, plus
+ *                 the index.  Otherwise each run is a varint length, then
+ *                 the difference of its red, green, and blue intensities
+ *                 from the previous run's, each as a zigzag varint.
+ *
+ *  A varint holds seven bits in each byte, least significant first, with the
+ *  high bit set on every byte but the last.  A zigzag varint stores a signed
+ *  value v as 2v if v >= 0, or -2v - 1 otherwise, so small differences of
+ *  either sign take one byte.  An encoding with at most 256 colors is written
+ *  with a palette, so a run of a two-color mask shorter than 65 pixels takes
+ *  one byte; photographs, whose neighboring runs have similar colors, are
+ *  delta-coded.
+ *
+ *  An image with no pixels has no runs, and then no palette.
+ *
+ *  Blocks let the reader pull in and check a whole block at a time while
+ *  still reading exactly the bytes of one record, so records can be stored
+ *  back to back in one stream.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+class RunLengthFormat {
+
+  private static final int MAGIC = 0x524c4531;  // "RLE1"
+  private static final int PALETTE = 1;
+  private static final int CHECKSUM = 2;
+  private static final int MAX_COLORS = 256;
+  private static final int BLOCK_SIZE = 1 << 13;
+
+  /**
+   *  Writer gathers the payload of a record in a buffer, writing it to the
+   *  stream (and adding it to the checksum) as a block whenever the buffer
+   *  fills.
+   */
+  private static class Writer {
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int count;
+
+    Writer(OutputStream out) {
+      this.out = out;
+    }
+
+    void put(int b) throws IOException {
+      if (count == buffer.length) {
+        flush();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    void putVarint(long value) throws IOException {
+      while ((value & ~0x7fL) != 0) {
+        put((int) (value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      put((int) value);
+    }
+
+    void putZigzag(int value) throws IOException {
+      putVarint(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+    }
+
+    /**
+     *  flush() writes the buffered payload as a block.
+     */
+    void flush() throws IOException {
+      if (count == 0) {
+        return;
+      }
+      for (int n = count; ; n >>>= 7) {
+        if ((n & ~0x7f) == 0) {
+          out.write(n);
+          break;
+        }
+        out.write((n & 0x7f) | 0x80);
+      }
+      out.write(buffer, 0, count);
+      crc.update(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   *  Reader reads the payload of a record a block at a time.
+   */
+  private static class Reader {
+    private final InputStream in;
+    private final CRC32 crc = new CRC32();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int position, limit;
+
+    Reader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     *  raw() reads one byte from the stream itself, outside any block.
+     */
+    int raw() throws IOException {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Truncated run-length encoding.");
+      }
+      return b;
+    }
+
+    /**
+     *  blockSize() reads the varint byte count that begins a block.
+     */
+    int blockSize() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = raw();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed run-length encoding block.");
+    }
+
+    /**
+     *  nextBlock() reads the next block of the payload.
+     */
+    void nextBlock() throws IOException {
+      int size = blockSize();
+      if (size <= 0 || size > 1 << 20) {
+        throw new IOException("Malformed run-length encoding block.");
+      }
+      if (size > block.length) {
+        block = new byte[size];
+      }
+      int filled = 0;
+      while (filled < size) {
+        int n = in.read(block, filled, size - filled);
+        if (n < 0) {
+          throw new EOFException("Truncated run-length encoding.");
+        }
+        filled += n;
+      }
+      crc.update(block, 0, size);
+      position = 0;
+      limit = size;
+    }
+
+    int get() throws IOException {
+      if (position == limit) {
+        nextBlock();
+      }
+      return block[position++] & 0xff;
+    }
+
+    int getVarint() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = get();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in run-length encoding.");
+    }
+
+    long getVarlong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = get();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in run-length encoding.");
+    }
+
+    int getZigzag() throws IOException {
+      int value = getVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+  }
+
+  /**
+   *  indexBits() returns the number of bits needed for an index into
+   *  a palette of n colors.
+   */
+  private static int indexBits(int n) {
+    return 32 - Integer.numberOfLeadingZeros(n - 1);
+  }
+
+  /**
+   *  slot() returns where a hash table with mask + 1 slots starts looking for
+   *  a color.
+   */
+  private static int slot(int color, int mask) {
+    return (color * 0x9e3779b1) >>> 16 & mask;
+  }
+
+  /**
+   *  write() writes a run-length encoding to a stream.  The stream is flushed
+   *  but not closed.
+   *
+   *  @param rle the encoding to write.
+   *  @param out the stream to write to.
+   *  @param checksum true to end the record with a CRC-32 checksum.
+   *  @throws IOException if the stream cannot be written.
+   */
+  static void write(RunLengthEncoding rle, OutputStream out, boolean checksum)
+    throws IOException {
+    // An encoding of an empty image may hold one run of length zero, which
+    // is not written.
+    int runs = 0;
+    RunCursor cursor = rle.cursor();
+    while (cursor.advance()) {
+      if (cursor.length() > 0) {
+        runs++;
+      }
+    }
+    int[] palette = runs > 0 ? rle.distinctColors(MAX_COLORS) : null;
+
+    int flags = (palette != null ? PALETTE : 0) | (checksum ? CHECKSUM : 0);
+    byte[] header = { (byte) (MAGIC >> 24), (byte) (MAGIC >> 16),
+                      (byte) (MAGIC >> 8), (byte) MAGIC, (byte) flags,
+                      (byte) ~flags };
+    out.write(header);
+    Writer writer = new Writer(out);
+    writer.crc.update(header);
+    writer.putVarint(rle.getWidth());
+    writer.putVarint(rle.getHeight());
+    writer.putVarint(runs);
+    if (palette != null) {
+      writer.putVarint(palette.length);
+      for (int color : palette) {
+        writer.put(color >> 16);
+        writer.put(color >> 8);
+        writer.put(color);
+      }
+    }
+
+    // With a palette, each color's index is found in a hash table of the
+    // colors plus one, next to their indices.
+    int bits = 0, mask = 0;
+    int[] table = null;
+    if (palette != null) {
+      bits = indexBits(palette.length);
+      table = new int[4 << bits];
+      mask = (table.length >> 1) - 1;
+      for (int i = 0; i < palette.length; i++) {
+        int h = slot(palette[i], mask);
+        while (table[2 * h] != 0) {
+          h = (h + 1) & mask;
+        }
+        table[2 * h] = palette[i] + 1;
+        table[2 * h + 1] = i;
+      }
+    }
+    int red = 0, green = 0, blue = 0;
+    cursor = rle.cursor();
+    while (cursor.advance()) {
+      if (cursor.length() == 0) {
+        continue;
+      }
+      if (palette != null) {
+        int color = RunList.pack(cursor.red(), cursor.green(), cursor.blue());
+        int h = slot(color, mask);
+        while (table[2 * h] != color + 1) {
+          h = (h + 1) & mask;
+        }
+        writer.putVarint(((cursor.length() - 1L) << bits) | table[2 * h + 1]);
+      } else {
+        writer.putVarint(cursor.length());
+        writer.putZigzag(cursor.red() - red);
+        writer.putZigzag(cursor.green() - green);
+        writer.putZigzag(cursor.blue() - blue);
+        red = cursor.red();
+        green = cursor.green();
+        blue = cursor.blue();
+      }
+    }
+    writer.flush();
+    out.write(0);
+    if (checksum) {
+      int value = (int) writer.crc.getValue();
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        out.write(value >> shift);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   *  read() reads a run-length encoding written by write(), and no bytes
+   *  past the end of its record.
+   *
+   *  @param in the stream to read from.
+   *  @return the encoding.
+   *  @throws IOException if the stream cannot be read, does not hold a valid
+   *  record, or fails its checksum.
+   */
+  static RunLengthEncoding read(InputStream in) throws IOException {
+    Reader reader = new Reader(in);
+    byte[] header = new byte[6];
+    int magic = 0;
+    for (int i = 0; i < header.length; i++) {
+      header[i] = (byte) reader.raw();
+      if (i < 4) {
+        magic = (magic << 8) | (header[i] & 0xff);
+      }
+    }
+    if (magic != MAGIC) {
+      throw new IOException("Not a run-length encoding.");
+    }
+    int flags = header[4] & 0xff;
+    if (header[5] != (byte) ~flags) {
+      throw new IOException("Corrupt run-length encoding flags.");
+    }
+    if ((flags & ~(PALETTE | CHECKSUM)) != 0) {
+      throw new IOException("Unknown run-length encoding flags " + flags +
+                            ".");
+    }
+    reader.crc.update(header);
+    int width = reader.getVarint(), height = reader.getVarint();
+    int runs = reader.getVarint();
+    long total = (long) width * height;
+    if (width < 0 || height < 0 || total > Integer.MAX_VALUE ||
+        runs < 0 || runs > total || (runs == 0 && total > 0)) {
+      throw new IOException("Invalid run-length encoding header.");
+    }
+    int[] palette = null;
+    int bits = 0;
+    if ((flags & PALETTE) != 0) {
+      int count = reader.getVarint();
+      if (count <= 0 || count > MAX_COLORS) {
+        throw new IOException("Invalid run-length encoding palette.");
+      }
+      palette = new int[count];
+      for (int i = 0; i < count; i++) {
+        palette[i] = RunList.pack(reader.get(), reader.get(), reader.get());
+      }
+      bits = indexBits(count);
+    }
+
+    // The arrays grow as runs arrive, so a corrupt run count cannot make us
+    // allocate more than the data justifies.
+    int capacity = Math.min(runs, 1 << 16);
+    int[] starts = new int[capacity];
+    int[] colors = new int[capacity];
+    int red = 0, green = 0, blue = 0;
+    long start = 0;
+    for (int i = 0; i < runs; i++) {
+      long length;
+      int color;
+      if (palette != null) {
+        long value = reader.getVarlong();
+        int index = (int) (value & ((1 << bits) - 1));
+        if (index >= palette.length) {
+          throw new IOException("Run " + i + " has no palette color.");
+        }
+        length = (value >>> bits) + 1;
+        color = palette[index];
+      } else {
+        length = reader.getVarint();
+        red = (red + reader.getZigzag()) & 0xff;
+        green = (green + reader.getZigzag()) & 0xff;
+        blue = (blue + reader.getZigzag()) & 0xff;
+        color = RunList.pack(red, green, blue);
+      }
+      if (length <= 0 || (i > 0 && color == colors[i - 1])) {
+        throw new IOException("Run " + i + " is invalid.");
+      }
+      if (i == capacity) {
+        capacity = (int) Math.min(runs, 2L * capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        colors = Arrays.copyOf(colors, capacity);
+      }
+      starts[i] = (int) start;
+      colors[i] = color;
+      start += length;
+      if (start > total) {
+        throw new IOException("Runs cover more than " + total + " pixels.");
+      }
+    }
+    if (start != total) {
+      throw new IOException("Runs cover " + start + " of " + total +
+                            " pixels.");
+    }
+    if (reader.position != reader.limit || reader.blockSize() != 0) {
+      throw new IOException("Run-length encoding has extra data.");
+    }
+
+    if ((flags & CHECKSUM) != 0) {
+      int expected = (int) reader.crc.getValue();
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = (value << 8) | reader.raw();
+      }
+      if (value != expected) {
+        throw new IOException("Run-length encoding checksum mismatch.");
+      }
+    }
+    return new RunLengthEncoding(width, height,
+                                 new RunList(starts, colors, runs,
+                                             (int) total));
+  }
+}
@@ -1,54 +1,218 @@
+/* RunList.java */
+
+/**
+ *  The RunList class stores the runs of a RunLengthEncoding in two parallel
+ *  int arrays:  the index of the first pixel of each run (in row-major
+ *  order), and its color packed as 0xRRGGBB.  A run's length is the
+ *  difference between its start and the next run's start (or the total
+ *  number of pixels, for the last run).  Splitting or merging runs never moves
+ *  a pixel, so the starts of the other runs never change.
+ *
+ *  Because the starts are sorted, the run containing a pixel is found by
+ *  binary search.  The arrays are a gap buffer:  the unused slots sit at the
+ *  position of the most recent insertion or deletion, so a run is inserted
+ *  or deleted by moving only the runs between the previous edit and this
+ *  one.  Edits close together (such as a sweep of setPixel() calls) cost
+ *  O(1) each; an edit far away costs one System.arraycopy().
+ *
+ *  Runs are numbered 0...getSize() - 1; the gap is invisible to callers.
+ */
+
 public class RunList {
 
-	private Run head;
-	private int size;
+	private int[] starts;
+	private int[] colors;
+	private int gapStart, gapEnd;
+	private int total;
 
 	public RunList() {
-		head = new Run();
-		head.prev = head;
-		head.next = head;
-		head.red = -1;
-		head.green = -1;
-		head.blue = -1;
+		starts = new int[8];
+		colors = new int[8];
+		gapStart = 0;
+		gapEnd = 8;
+	}
+
+	/**
+	 *  RunList() wraps arrays that already hold "size" runs, sorted by start,
+	 *  covering "total" pixels.  The arrays become part of the list; the
+	 *  unused slots after the runs become the gap.
+	 */
+	RunList(int[] starts, int[] colors, int size, int total) {
+		this.starts = starts;
+		this.colors = colors;
+		this.total = total;
+		gapStart = size;
+		gapEnd = starts.length;
+	}
+
+	/**
+	 *  pack() returns a color packed as 0xRRGGBB.  Each intensity must be in
+	 *  the range 0...255 (see isColor()), or it spills into the others.
+	 */
+	public static int pack(int red, int green, int blue) {
+		return (red << 16) | (green << 8) | blue;
 	}
 
-	public Run getHead() {
-		return head;
+	/**
+	 *  isColor() returns true if red, green, and blue are all in the range
+	 *  0...255, so that pack() can store them.
+	 */
+	public static boolean isColor(int red, int green, int blue) {
+		return ((red | green | blue) & ~0xff) == 0;
 	}
 
 	public int getSize() {
-		return size;
+		return starts.length - (gapEnd - gapStart);
+	}
+
+	/**
+	 *  getTotal() returns the sum of the lengths of all the runs.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 *  slot() returns the array index holding run i.
+	 */
+	private int slot(int i) {
+		return i < gapStart ? i : i + (gapEnd - gapStart);
+	}
+
+	public int start(int i) {
+		return starts[slot(i)];
+	}
+
+	public int length(int i) {
+		int end = i + 1 < getSize() ? starts[slot(i + 1)] : total;
+		return end - starts[slot(i)];
+	}
+
+	public int color(int i) {
+		return colors[slot(i)];
+	}
+
+	public int red(int i) {
+		return colors[slot(i)] >> 16;
+	}
+
+	public int green(int i) {
+		return (colors[slot(i)] >> 8) & 0xff;
+	}
+
+	public int blue(int i) {
+		return colors[slot(i)] & 0xff;
+	}
+
+	public void setStart(int i, int start) {
+		starts[slot(i)] = start;
+	}
+
+	public void setColor(int i, int color) {
+		colors[slot(i)] = color;
+	}
+
+	/**
+	 *  find() returns the run containing a pixel, 0 <= pixel < getTotal().
+	 *  Empty runs are never returned.
+	 */
+	public int find(int pixel) {
+		// The last run whose start does not exceed the pixel.
+		int lo = 0, hi = getSize() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[slot(mid)] <= pixel) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
 	}
 
 	public void insertEnd(int red, int green, int blue, int length) {
-		Run node = new Run(red, green, blue, length);
-		head.prev.next = node;
-		node.prev = head.prev;
-		node.next = head;
-		head.prev = node;
-		size++;
+		insertEnd(pack(red, green, blue), length);
 	}
 
-	public void insertAfter(Run node, int red, int green, int blue, int length) {
-		Run newNode = new Run(red, green, blue, length);
-		node.next.prev = newNode;
-		newNode.next = node.next;
-		newNode.prev = node;
-		node.next = newNode;
-		size++;
+	/**
+	 *  insertEnd() appends a run with a packed color.
+	 */
+	public void insertEnd(int color, int length) {
+		insert(getSize(), total, color);
+		total += length;
 	}
 
-	public void delete(Run node) {
-		node.prev.next = node.next;
-		node.next.prev = node.prev;
-		size--;
+	/**
+	 *  mergeEnd() appends a run with a packed color, or lengthens the last
+	 *  run if it already has that color.  Empty runs are not appended.
+	 */
+	public void mergeEnd(int color, int length) {
+		int size = getSize();
+		if (size > 0 && colors[slot(size - 1)] == color) {
+			total += length;
+		} else if (length > 0) {
+			insertEnd(color, length);
+		}
 	}
 
-	public void deleteOneLength(Run node) {
-		node.length--;
-		if (node.length == 0) {
-			delete(node);
+	/**
+	 *  insert() makes a new run i with the given start and color; the old
+	 *  runs i, i + 1, ... become runs i + 1, i + 2, ....  The caller keeps
+	 *  the starts sorted.
+	 */
+	public void insert(int i, int start, int color) {
+		if (gapStart == gapEnd) {
+			grow();
 		}
+		moveGap(i);
+		starts[gapStart] = start;
+		colors[gapStart] = color;
+		gapStart++;
+	}
+
+	/**
+	 *  delete() removes run i.  Its pixels become part of run i - 1.
+	 */
+	public void delete(int i) {
+		moveGap(i);
+		gapEnd++;
+	}
+
+	/**
+	 *  moveGap() moves the gap so that it begins just before run i.
+	 */
+	private void moveGap(int i) {
+		if (i < gapStart) {
+			int count = gapStart - i;
+			System.arraycopy(starts, i, starts, gapEnd - count, count);
+			System.arraycopy(colors, i, colors, gapEnd - count, count);
+			gapStart -= count;
+			gapEnd -= count;
+		} else if (i > gapStart) {
+			int count = i - gapStart;
+			System.arraycopy(starts, gapEnd, starts, gapStart, count);
+			System.arraycopy(colors, gapEnd, colors, gapStart, count);
+			gapStart += count;
+			gapEnd += count;
+		}
+	}
+
+	/**
+	 *  grow() doubles the capacity of the arrays, keeping the runs after the
+	 *  gap at the end.
+	 */
+	private void grow() {
+		int capacity = starts.length * 2;
+		int after = starts.length - gapEnd;
+		int[] newStarts = new int[capacity];
+		int[] newColors = new int[capacity];
+		System.arraycopy(starts, 0, newStarts, 0, gapStart);
+		System.arraycopy(colors, 0, newColors, 0, gapStart);
+		System.arraycopy(starts, gapEnd, newStarts, capacity - after, after);
+		System.arraycopy(colors, gapEnd, newColors, capacity - after, after);
+		starts = newStarts;
+		colors = newColors;
+		gapEnd = capacity - after;
 	}
 
 	public static void main(String[] args) {
@@ -56,12 +220,8 @@ public class RunList {
 		int a = 1, b = 2, c = 3, d = 4;
 		rList.insertEnd(a, b, c, d);
 		rList.insertEnd(d, c, b, a);
-		Run head = rList.getHead().next;
-		int size = rList.getSize();
-		while (size > 0) {
-			System.out.println(head.red);
-			head = head.next;
-			size--;
+		for (int i = 0; i < rList.getSize(); i++) {
+			System.out.println(rList.red(i));
 		}
 	}
-}
\ No newline at end of file
+}
@@ -35,6 +35,11 @@
  *  to edge_engine.tiff, and write a run-length encoded grayscale-edge image to
  *  rle_engine.tiff.
  *
+ *  If the first parameter is "-stream", the remaining parameters are the same,
+ *  but the image is streamed through the blur and edge detection a few rows
+ *  at a time (see StripPipeline) instead of being read into memory, and
+ *  nothing is displayed.  Use this for images too large to fit in memory.
+ *
  *  @author Joel Galenson and Jonathan Shewchuk
  */
 
@@ -91,10 +96,34 @@ public class Sobel {
     }
   }
 
+  /**
+   *  streamFile() performs the same work as sobelFile() a few rows at a time,
+   *  without ever holding the whole image in memory, and without displaying
+   *  anything.
+   *
+   *  @param filename the name of the input TIFF image file.
+   *  @param numIterations the number of iterations of blurring to perform.
+   *  @param rle true if the output TIFF file should be run-length encoded.
+   */
+  private static void streamFile(String filename, int numIterations,
+                                 boolean rle) {
+    System.out.println("Streaming " + filename + " through " + numIterations +
+                       " blur iteration(s) and Sobel edge detection.");
+    try {
+      StripPipeline.sobelFile(filename, numIterations, "blur_" + filename,
+                              "edge_" + filename,
+                              rle ? "rle_" + filename : null);
+    } catch (java.io.IOException e) {
+      System.err.println("Cannot stream " + filename + ":  " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
   /**
    *  main() reads the command-line arguments and initiates the blurring.
    *
-   *  The first command-line argument is the name of the image file.
+   *  An optional first argument "-stream" selects streaming mode.
+   *  The next command-line argument is the name of the image file.
    *  An optional second argument is number of iterations of blurring.
    *  An optional third argument triggers the writing of a run-length encoded
    *  grayscale-edge image.
@@ -102,8 +131,13 @@ public class Sobel {
    *  @param args the usual array of command-line argument Strings.
    */
   public static void main(String[] args) {
+    boolean stream = args.length > 0 && args[0].equals("-stream");
+    if (stream) {
+      args = java.util.Arrays.copyOfRange(args, 1, args.length);
+    }
     if (args.length == 0) {
-      System.out.println("usage:  java Sobel imagefile [iterations] [RLE]");
+      System.out.println("usage:  java Sobel [-stream] imagefile [iterations]" +
+                         " [RLE]");
       System.out.println("  imagefile is an image in TIFF format.");
       System.out.println("  interations is the number of blurring iterations" +
                          " (default 0).");
@@ -113,6 +147,8 @@ public class Sobel {
                          "edge_imagefile.");
       System.out.println("If blurring is selected, " +
                          "the blurred image is written to blur_imagefile.");
+      System.out.println("-stream processes the image a few rows at a time " +
+                         "and does not display it.");
       System.exit(0);
     }
 
@@ -126,6 +162,10 @@ public class Sobel {
       }
     }
 
-    sobelFile(args[0], numIterations, args.length >= 3);
+    if (stream) {
+      streamFile(args[0], numIterations, args.length >= 3);
+    } else {
+      sobelFile(args[0], numIterations, args.length >= 3);
+    }
   }
 }
@@ -0,0 +1,185 @@
+/* SobelKernel.java */
+
+/**
+ *  The SobelKernel class implements the Sobel edge detection behind
+ *  PixImage.sobelEdges() in a single fused pass over PixImage's interleaved
+ *  row-major pixel buffer.
+ *
+ *  Both 3x3 Sobel kernels are separable, and their zero taps are never
+ *  touched.  For every lane (one color of one pixel) of an output row we form
+ *  the vertical difference S = above - below and the vertical smoothing
+ *  T = above + 2 * current + below, so the gradients of the pixel are
+ *
+ *      gx = S(x - 1) + 2 S(x) + S(x + 1)      gy = T(x - 1) - T(x + 1).
+ *
+ *  Out-of-range neighbors are replaced by the nearest pixel on the image
+ *  boundary; the caller does this for rows by passing the clamped rows, and
+ *  this class does it for columns by handling the first and last pixels
+ *  separately.  The energies of the three colors are summed in an int (they
+ *  never exceed 3 * 2 * 1020^2) and mapped to a gray intensity with a table
+ *  of breakpoints instead of a logarithm.
+ */
+
+class SobelKernel {
+
+  /**
+   *  THRESHOLDS[k - 1] is the smallest energy that PixImage.mag2gray() maps
+   *  to an intensity of k or more, for k = 1...255.  Because mag2gray() is
+   *  nondecreasing, the intensity of an energy is the number of thresholds
+   *  that do not exceed it.
+   */
+  private static final int[] THRESHOLDS = new int[255];
+
+  /**
+   *  The largest energy mag2gray() is documented to accept.
+   */
+  static final int MAX_ENERGY = 24969600;
+
+  static {
+    for (int k = 1; k <= 255; k++) {
+      int lo = 0, hi = MAX_ENERGY + 1;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (PixImage.mag2gray(mid) >= k) {
+          hi = mid;
+        } else {
+          lo = mid + 1;
+        }
+      }
+      THRESHOLDS[k - 1] = lo;
+    }
+  }
+
+  /**
+   *  gray() maps an energy to a grayscale intensity, exactly as
+   *  PixImage.mag2gray() does, by binary searching the threshold table.
+   *
+   *  @param energy the energy, in the range 0...MAX_ENERGY.
+   *  @return the intensity of the output pixel.
+   */
+  static int gray(int energy) {
+    if (energy < THRESHOLDS[0]) {
+      return 0;
+    }
+    int lo = 1, hi = 255;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (THRESHOLDS[mid] <= energy) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   *  sobelRow() computes one row of the grayscale edge image.  The rows
+   *  above and below must already be clamped to the image, so at the top
+   *  row "above" is the row itself, and at the bottom row "below" is.
+   *
+   *  @param above the buffer holding the row above.
+   *  @param aboveOff the index in above where that row begins.
+   *  @param current the buffer holding the row itself.
+   *  @param currentOff the index in current where the row begins.
+   *  @param below the buffer holding the row below.
+   *  @param belowOff the index in below where that row begins.
+   *  @param dst the buffer that receives the gray output row.
+   *  @param dstOff the index in dst where the output row begins.
+   *  @param width the number of pixels in the row.
+   *  @param s scratch space for width * 3 vertical differences.
+   *  @param t scratch space for width * 3 vertical smoothings.
+   */
+  static void sobelRow(byte[] above, int aboveOff, byte[] current,
+                       int currentOff, byte[] below, int belowOff,
+                       byte[] dst, int dstOff, int width, int[] s, int[] t) {
+    int lanes = width * 3;
+    for (int i = 0; i < lanes; i++) {
+      int a = above[aboveOff + i] & 0xff;
+      int b = below[belowOff + i] & 0xff;
+      s[i] = a - b;
+      t[i] = a + 2 * (current[currentOff + i] & 0xff) + b;
+    }
+
+    // The first and last pixels use themselves as their missing neighbor.
+    writeGray(dst, dstOff, pixelEnergy(s, t, 0, 0, Math.min(3, lanes - 3)));
+    if (width > 1) {
+      writeGray(dst, dstOff + lanes - 3,
+                pixelEnergy(s, t, lanes - 3, lanes - 6, lanes - 3));
+    }
+    for (int i = 3; i < lanes - 3; i += 3) {
+      writeGray(dst, dstOff + i, pixelEnergy(s, t, i, i - 3, i + 3));
+    }
+  }
+
+  /**
+   *  pixelEnergy() sums the squared gradients of the three colors of one
+   *  pixel, given the lane indices of the pixel and its left and right
+   *  neighbors.
+   */
+  private static int pixelEnergy(int[] s, int[] t, int i, int left,
+                                 int right) {
+    int energy = 0;
+    for (int c = 0; c < 3; c++) {
+      int gx = s[left + c] + 2 * s[i + c] + s[right + c];
+      int gy = t[left + c] - t[right + c];
+      energy += gx * gx + gy * gy;
+    }
+    return energy;
+  }
+
+  /**
+   *  writeGray() writes the gray intensity of an energy to all three lanes
+   *  of an output pixel.
+   */
+  private static void writeGray(byte[] dst, int i, int energy) {
+    byte g = (byte) gray(energy);
+    dst[i] = g;
+    dst[i + 1] = g;
+    dst[i + 2] = g;
+  }
+
+  /**
+   *  sobelRows() computes rows y0...y1 - 1 of the grayscale edge image of
+   *  a whole source image.  Disjoint row ranges may be computed
+   *  independently.
+   *
+   *  @param src the source image buffer.
+   *  @param dst the destination image buffer.
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param y0 the first output row.
+   *  @param y1 one past the last output row.
+   */
+  static void sobelRows(byte[] src, byte[] dst, int width, int height,
+                        int y0, int y1) {
+    sobelRows(src, dst, width, height, y0, y1, LaneKernels.ENABLED);
+  }
+
+  /**
+   *  sobelRows() is the same as above, but uses the lane kernel of
+   *  LaneKernels if "lanes" is true and the scalar kernel otherwise.
+   */
+  static void sobelRows(byte[] src, byte[] dst, int width, int height,
+                        int y0, int y1, boolean lanes) {
+    if (y0 >= y1 || width == 0) {
+      return;
+    }
+    int rowLength = width * 3;
+    int[] s = new int[rowLength];
+    int[] t = new int[rowLength];
+    int[] e = lanes ? new int[rowLength] : null;
+
+    for (int y = y0; y < y1; y++) {
+      int above = Math.max(y - 1, 0) * rowLength;
+      int below = Math.min(y + 1, height - 1) * rowLength;
+      if (lanes) {
+        LaneKernels.sobelRow(src, above, src, y * rowLength, src, below,
+                             dst, y * rowLength, width, s, t, e);
+      } else {
+        sobelRow(src, above, src, y * rowLength, src, below,
+                 dst, y * rowLength, width, s, t);
+      }
+    }
+  }
+}
@@ -0,0 +1,337 @@
+/* StripPipeline.java */
+
+/**
+ *  The StripPipeline class blurs and edge-detects TIFF files as a stream of
+ *  rows, for images too large to hold in memory.  It produces exactly the
+ *  same files as reading the image into a PixImage, calling boxBlur() and
+ *  sobelEdges(), and writing the results with TIFFEncoder.
+ *
+ *  Rows are read one at a time with a TIFFDecoder and pushed through a chain
+ *  of stages.  Each blur iteration and the Sobel operator is a stage that
+ *  remembers only the last few rows it was given:  an output row depends on
+ *  the input rows just above, at, and below it, so a stage emits row y - 1
+ *  as soon as row y arrives, and emits its last row when the input ends.
+ *  Output rows are written to TIFF files as they come out of the chain.
+ *  Peak memory is therefore proportional to the width of the image times the
+ *  number of stages, independent of the height of the image.
+ *
+ *  Only the layouts TIFFDecoder handles can be streamed:  8-bit chunky RGB,
+ *  grayscale, or palette samples, uncompressed or PackBits.  There is no
+ *  fallback to JAI, which would read the whole image into memory; any other
+ *  file is refused with an IOException that says to run without -stream.
+ */
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+public class StripPipeline {
+
+  /**
+   *  RowSink is implemented by every stage of the pipeline.  A row passed to
+   *  row() is width * 3 interleaved red, green, and blue bytes, and is only
+   *  valid for the duration of the call.
+   */
+  interface RowSink {
+
+    /**
+     *  row() accepts the next row, top to bottom.
+     *
+     *  @param row the array holding the row.
+     *  @param offset the index in row where the row begins.
+     *  @throws IOException if an output file cannot be written.
+     */
+    void row(byte[] row, int offset) throws IOException;
+
+    /**
+     *  finish() is called after the last row.
+     *
+     *  @throws IOException if an output file cannot be written.
+     */
+    void finish() throws IOException;
+
+    /**
+     *  close() releases the output files of this stage and the stages after
+     *  it.  It is always called last, whether or not the pipeline finished;
+     *  an output file that was not completed is deleted.
+     */
+    void close();
+  }
+
+  /**
+   *  BlurStage performs one iteration of box blurring.  It keeps the
+   *  horizontal sums of the two most recent input rows.
+   */
+  static class BlurStage implements RowSink {
+    private final RowSink next;
+    private final int width;
+    private int[] older, newer, incoming;
+    private final int[] zeros;
+    private final byte[] out;
+    private int rows;
+
+    BlurStage(int width, RowSink next) {
+      this.width = width;
+      this.next = next;
+      older = new int[width * 3];
+      newer = new int[width * 3];
+      incoming = new int[width * 3];
+      zeros = new int[width * 3];
+      out = new byte[width * 3];
+    }
+
+    public void row(byte[] row, int offset) throws IOException {
+      BoxBlur.horizontalSums(row, offset, width, incoming);
+      if (rows > 0) {
+        // Emit row "rows - 1", whose lower neighbor just arrived.
+        emit(rows > 1 ? older : zeros, newer, incoming, rows > 1 ? 3 : 2);
+      }
+      int[] recycled = older;
+      older = newer;
+      newer = incoming;
+      incoming = recycled;
+      rows++;
+    }
+
+    public void finish() throws IOException {
+      if (rows > 0) {
+        emit(rows > 1 ? older : zeros, newer, zeros, rows > 1 ? 2 : 1);
+      }
+      next.finish();
+    }
+
+    public void close() {
+      next.close();
+    }
+
+    private void emit(int[] above, int[] current, int[] below, int count)
+      throws IOException {
+      if (LaneKernels.ENABLED) {
+        LaneKernels.averageRow(above, current, below, count, out, 0, width);
+      } else {
+        BoxBlur.averageRow(above, current, below, count, out, 0, width);
+      }
+      next.row(out, 0);
+    }
+  }
+
+  /**
+   *  SobelStage performs Sobel edge detection.  It keeps copies of the two
+   *  most recent input rows.
+   */
+  static class SobelStage implements RowSink {
+    private final RowSink next;
+    private final int width;
+    private byte[] older, newer, incoming;
+    private final int[] s, t, e;
+    private final byte[] out;
+    private int rows;
+
+    SobelStage(int width, RowSink next) {
+      this.width = width;
+      this.next = next;
+      older = new byte[width * 3];
+      newer = new byte[width * 3];
+      incoming = new byte[width * 3];
+      s = new int[width * 3];
+      t = new int[width * 3];
+      e = new int[width * 3];
+      out = new byte[width * 3];
+    }
+
+    public void row(byte[] row, int offset) throws IOException {
+      System.arraycopy(row, offset, incoming, 0, width * 3);
+      if (rows > 0) {
+        // Emit row "rows - 1"; the top row is its own upper neighbor.
+        emit(rows > 1 ? older : newer, newer, incoming);
+      }
+      byte[] recycled = older;
+      older = newer;
+      newer = incoming;
+      incoming = recycled;
+      rows++;
+    }
+
+    public void finish() throws IOException {
+      if (rows > 0) {
+        // The bottom row is its own lower neighbor.
+        emit(rows > 1 ? older : newer, newer, newer);
+      }
+      next.finish();
+    }
+
+    public void close() {
+      next.close();
+    }
+
+    private void emit(byte[] above, byte[] current, byte[] below)
+      throws IOException {
+      if (LaneKernels.ENABLED) {
+        LaneKernels.sobelRow(above, 0, current, 0, below, 0, out, 0, width,
+                             s, t, e);
+      } else {
+        SobelKernel.sobelRow(above, 0, current, 0, below, 0, out, 0, width,
+                             s, t);
+      }
+      next.row(out, 0);
+    }
+  }
+
+  /**
+   *  FileSink writes every row it is given to a TIFF file, and optionally
+   *  passes it on to another stage.
+   */
+  static class FileSink implements RowSink {
+    private final TIFFEncoder.RowWriter writer;
+    private final RowSink next;
+
+    FileSink(TIFFEncoder.RowWriter writer, RowSink next) {
+      this.writer = writer;
+      this.next = next;
+    }
+
+    public void row(byte[] row, int offset) throws IOException {
+      writer.writeRow(row, offset);
+      if (next != null) {
+        next.row(row, offset);
+      }
+    }
+
+    public void finish() throws IOException {
+      writer.close();
+      if (next != null) {
+        next.finish();
+      }
+    }
+
+    public void close() {
+      // A file that finish() closed is kept; any other is deleted.
+      writer.abort();
+      if (next != null) {
+        next.close();
+      }
+    }
+  }
+
+  /**
+   *  open() opens a TIFF file for streaming.
+   *
+   *  @param input the name of the TIFF file.
+   *  @return a decoder positioned at the first row.
+   *  @throws IOException if the file cannot be read, or uses a layout that
+   *  TIFFDecoder does not handle; the message then names -stream.
+   */
+  static TIFFDecoder open(String input) throws IOException {
+    try {
+      return new TIFFDecoder(input, ImageUtils.isMappedInput());
+    } catch (FileNotFoundException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new IOException(e.getMessage() + "  Run without -stream to " +
+                            "read " + input + " into memory instead.", e);
+    }
+  }
+
+  /**
+   *  pump() reads every row of a TIFF file into the first stage of
+   *  a pipeline, then finishes the pipeline.  The caller closes the file and
+   *  the pipeline.
+   */
+  private static void pump(TIFFDecoder decoder, RowSink first)
+    throws IOException {
+    byte[] row = new byte[decoder.getWidth() * 3];
+    for (int y = 0; y < decoder.getHeight(); y++) {
+      decoder.readRow(row, 0);
+      first.row(row, 0);
+    }
+    first.finish();
+  }
+
+  /**
+   *  close() closes a pipeline, which may be null if building it failed,
+   *  and then the file it was reading.
+   */
+  private static void close(RowSink chain, TIFFDecoder decoder)
+    throws IOException {
+    try {
+      if (chain != null) {
+        chain.close();
+      }
+    } finally {
+      decoder.close();
+    }
+  }
+
+  /**
+   *  blurFile() reads a TIFF file, performs numIterations iterations of box
+   *  blurring, and writes the blurred image to an uncompressed TIFF file.
+   *
+   *  @param input the name of the input TIFF file.
+   *  @param numIterations the number of iterations of blurring.
+   *  @param output the name of the output TIFF file.
+   *  @throws IOException if a file cannot be read or written.
+   */
+  public static void blurFile(String input, int numIterations, String output)
+    throws IOException {
+    TIFFDecoder decoder = open(input);
+    int width = decoder.getWidth(), height = decoder.getHeight();
+    RowSink chain = null;
+    try {
+      chain = new FileSink(new TIFFEncoder.RowWriter(output, width, height,
+                                                     false), null);
+      for (int i = 0; i < numIterations; i++) {
+        chain = new BlurStage(width, chain);
+      }
+      pump(decoder, chain);
+    } finally {
+      close(chain, decoder);
+    }
+  }
+
+  /**
+   *  sobelFile() reads a TIFF file, optionally blurs it, performs Sobel edge
+   *  detection, and writes the grayscale edge image to a TIFF file.
+   *
+   *  @param input the name of the input TIFF file.
+   *  @param numIterations the number of iterations of blurring to perform
+   *  before edge detection.
+   *  @param blurOutput the file to write the blurred image to, or null.  It
+   *  is ignored if numIterations is not positive.
+   *  @param edgeOutput the file to write the uncompressed edge image to.
+   *  @param rleOutput the file to write the run-length encoded edge image to,
+   *  or null.
+   *  @throws IOException if a file cannot be read or written.
+   */
+  public static void sobelFile(String input, int numIterations,
+                               String blurOutput, String edgeOutput,
+                               String rleOutput) throws IOException {
+    TIFFDecoder decoder = open(input);
+    int width = decoder.getWidth(), height = decoder.getHeight();
+    RowSink chain = null;
+    // Each stage is added in front of the last, so "chain" always reaches
+    // every writer opened so far and closing it releases them all.
+    try {
+      if (rleOutput != null) {
+        // Edge images are gray, so writeTIFF(RunLengthEncoding, ...) would
+        // write them with the gray palette too.
+        chain = new FileSink(new TIFFEncoder.RowWriter(rleOutput, width,
+                                                       height,
+                                                       TIFFEncoder
+                                                       .grayPalette()),
+                             null);
+      }
+      chain = new FileSink(new TIFFEncoder.RowWriter(edgeOutput, width,
+                                                     height, false), chain);
+      chain = new SobelStage(width, chain);
+      if (numIterations > 0 && blurOutput != null) {
+        chain = new FileSink(new TIFFEncoder.RowWriter(blurOutput, width,
+                                                       height, false), chain);
+      }
+      for (int i = 0; i < numIterations; i++) {
+        chain = new BlurStage(width, chain);
+      }
+      pump(decoder, chain);
+    } finally {
+      close(chain, decoder);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/* SummedAreaBlur.java */
+
+/**
+ *  The SummedAreaBlur class implements the box blur of any radius behind
+ *  PixImage.boxBlurRadius() and the Gaussian approximation behind
+ *  PixImage.gaussianBlur().
+ *
+ *  A box blur of radius r replaces each pixel by the average of the valid
+ *  pixels in the (2r + 1) x (2r + 1) square around it, with truncating
+ *  division, so radius 1 is exactly one iteration of PixImage.boxBlur().  Each
+ *  average is read in O(1) time from a summed-area table, whose entry for
+ *  (x, y) is the sum of every pixel above and to the left of (x, y):  the sum
+ *  of any rectangle is four table entries added and subtracted.  The cost is
+ *  therefore independent of the radius.  One color lane is done at a time, so
+ *  only one table (of longs, which cannot overflow) exists at once.
+ *
+ *  A Gaussian blur of standard deviation sigma is approximated by
+ *  GAUSSIAN_PASSES box blurs whose radii are chosen so that the variances add
+ *  up to sigma^2 as nearly as whole radii allow.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+class SummedAreaBlur {
+
+  /**
+   *  The number of box blurs that approximate a Gaussian blur.  Three passes
+   *  are within a few percent of a true Gaussian.
+   */
+  static final int GAUSSIAN_PASSES = 3;
+
+  /**
+   *  The largest number of pixels whose sum of intensities fits in an int.
+   */
+  private static final int INT_COUNT = Integer.MAX_VALUE / 255;
+
+  /**
+   *  table() stores the summed-area table of lane c (0 for red, 1 for green,
+   *  2 for blue) of an image in "table", which has (width + 1) * (height + 1)
+   *  entries.  Entry (y * (width + 1) + x) is the sum of lane c over the pixels
+   *  left of column x and above row y, so row 0 and column 0 are zero.
+   */
+  static void table(byte[] src, int width, int height, int c, long[] table) {
+    int stride = width + 1;
+    java.util.Arrays.fill(table, 0, stride, 0L);
+    for (int y = 0; y < height; y++) {
+      int in = y * width * 3 + c;
+      int above = y * stride, out = above + stride;
+      long rowSum = 0;
+      table[out] = 0;
+      for (int x = 1; x <= width; x++, in += 3) {
+        rowSum += src[in] & 0xff;
+        table[out + x] = table[above + x] + rowSum;
+      }
+    }
+  }
+
+  /**
+   *  blurRows() writes lane c of output rows y0...y1 - 1 of a box blur of
+   *  radius "radius", given the summed-area table of that lane.  Disjoint row
+   *  ranges may be computed independently.
+   */
+  static void blurRows(long[] table, byte[] dst, int width, int height,
+                       int c, int radius, int y0, int y1) {
+    int stride = width + 1;
+    for (int y = y0; y < y1; y++) {
+      int top = Math.max(y - radius, 0) * stride;
+      int bottom = (Math.min(y + radius, height - 1) + 1) * stride;
+      int rows = (bottom - top) / stride;
+      int out = y * width * 3 + c;
+      for (int x = 0; x < width; x++, out += 3) {
+        int left = Math.max(x - radius, 0);
+        int right = Math.min(x + radius, width - 1) + 1;
+        long sum = table[bottom + right] - table[bottom + left] -
+                   table[top + right] + table[top + left];
+        int count = (right - left) * rows;
+        // An int division is much faster, and the sum fits in an int unless
+        // the box holds more than 8,421,504 pixels.
+        dst[out] = (byte) (count <= INT_COUNT ? (int) sum / count
+                                              : sum / count);
+      }
+    }
+  }
+
+  /**
+   *  blur() performs a box blur of radius "radius" on an image buffer without
+   *  modifying it.  If pool is not null, the output rows of each lane are
+   *  computed in parallel bands once its table is built.
+   *
+   *  @param pixels the interleaved row-major buffer of the input image.
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param radius the radius of the box (at least one).
+   *  @param pool the pool to run on, or null to run sequentially.
+   *  @return a new buffer holding the blurred image.
+   */
+  static byte[] blur(byte[] pixels, final int width, final int height,
+                     int radius, ForkJoinPool pool) {
+    // A box wider than the image covers all of it, and a smaller radius
+    // keeps y + radius and x + radius in blurRows() from overflowing.
+    final int r = Math.min(radius, Math.max(width, height));
+    final byte[] dst = new byte[pixels.length];
+    final long[] table = new long[(width + 1) * (height + 1)];
+    for (int c = 0; c < 3; c++) {
+      table(pixels, width, height, c, table);
+      final int lane = c;
+      RowBands.run(pool, height, new RowBands.Kernel() {
+        public void run(int y0, int y1) {
+          blurRows(table, dst, width, height, lane, r, y0, y1);
+        }
+      });
+    }
+    return dst;
+  }
+
+  /**
+   *  gaussianRadii() returns the radii of the GAUSSIAN_PASSES box blurs that
+   *  approximate a Gaussian blur of standard deviation sigma.  A box of width
+   *  w has variance (w^2 - 1) / 12, so the widths are the odd numbers on
+   *  either side of the ideal common width, mixed so the variances add up to
+   *  sigma^2 as closely as possible.  Some radii may be zero.
+   *
+   *  @param sigma the standard deviation, which must be positive.
+   *  @return the radii, smallest first.
+   */
+  static int[] gaussianRadii(double sigma) {
+    int n = GAUSSIAN_PASSES;
+    double variance = sigma * sigma;
+    int lower = (int) Math.floor(Math.sqrt(12.0 * variance / n + 1.0));
+    if (lower % 2 == 0) {
+      lower--;
+    }
+    // The number of passes that use the lower width.
+    long m = Math.round((12.0 * variance - (double) n * lower * lower -
+                         4.0 * n * lower - 3.0 * n) / (-4.0 * lower - 4.0));
+    int[] radii = new int[n];
+    for (int i = 0; i < n; i++) {
+      radii[i] = (int) (i < m ? (lower - 1L) / 2 : (lower + 1L) / 2);
+    }
+    return radii;
+  }
+
+  /**
+   *  gaussian() approximates a Gaussian blur of standard deviation sigma on
+   *  an image buffer without modifying it.
+   *
+   *  @param pixels the interleaved row-major buffer of the input image.
+   *  @param width the width of the image.
+   *  @param height the height of the image.
+   *  @param sigma the standard deviation, which must be positive.
+   *  @param pool the pool to run on, or null to run sequentially.
+   *  @return a new buffer holding the blurred image (possibly "pixels" itself
+   *  if sigma is too small to blur at all).
+   */
+  static byte[] gaussian(byte[] pixels, int width, int height, double sigma,
+                         ForkJoinPool pool) {
+    for (int radius : gaussianRadii(sigma)) {
+      if (radius > 0) {
+        pixels = blur(pixels, width, height, radius, pool);
+      }
+    }
+    return pixels;
+  }
+}
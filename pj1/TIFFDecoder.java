@@ -0,0 +1,784 @@
+/* TIFFDecoder.java */
+
+/**
+ *  The TIFFDecoder class reads a TIFF file one row at a time, so images can
+ *  be processed without ever holding all of their pixels in memory.
+ *
+ *  It handles the baseline layouts our tools read and write:  8 bits per
+ *  sample, uncompressed or PackBits, one or more strips, chunky (interleaved)
+ *  samples, either byte order, and RGB, grayscale, or palette photometric
+ *  interpretations.  Every row is returned as width * 3 interleaved red,
+ *  green, and blue bytes, the same layout as PixImage.getRow().
+ *
+ *  Grayscale samples are converted to RGB exactly as JAI's reader converts
+ *  them (through Java 2D's linear gray color space), and 16-bit color map
+ *  entries are cut to their high byte as JAI does, so a file reads the same
+ *  way whichever path is used.
+ *
+ *  A decoder can read the file through its channel, a window of strip bytes
+ *  at a time, or memory-map it.  A mapped decoder parses the image file
+ *  directory in place and reads each strip through a read-only view of the
+ *  mapping, so samples are copied only once, from the file's pages straight
+ *  into the caller's row.  Files of any size are mapped up to a gigabyte at
+ *  a time.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class TIFFDecoder {
+
+  /**
+   *  GRAY_TO_RGB[v] is the red (= green = blue) intensity that Java 2D gives
+   *  an 8-bit gray sample v.
+   */
+  private static final byte[] GRAY_TO_RGB = new byte[256];
+
+  static {
+    BufferedImage gray = new BufferedImage(256, 1,
+                                           BufferedImage.TYPE_BYTE_GRAY);
+    for (int v = 0; v < 256; v++) {
+      gray.getRaster().setSample(v, 0, 0, v);
+    }
+    for (int v = 0; v < 256; v++) {
+      GRAY_TO_RGB[v] = (byte) (gray.getRGB(v, 0) >> 16);
+    }
+  }
+
+  /**
+   *  The largest part of a file that a mapped decoder maps at once.
+   */
+  private static final long MAP_SIZE = 1 << 30;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final ByteOrder order;
+
+  /**
+   *  fileSize is the length of the file.  If mapped is true, window maps
+   *  part of the file, starting at windowStart.
+   */
+  private final boolean mapped;
+  private final long fileSize;
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  private int width, height;
+  private int samplesPerPixel = 1;
+  private int bitsPerSample = 1;
+  private int compression = 1;
+  private int photometric = -1;
+  private int planarConfiguration = 1;
+  private long rowsPerStrip = 0xffffffffL;
+  private long[] stripOffsets;
+  private long[] stripByteCounts;
+  private long[] colorMap;
+
+  /**
+   *  For palette and grayscale images, sampleColors[v] is the color, packed
+   *  as 0xRRGGBB, of a pixel whose (first) sample is v.
+   */
+  private int[] sampleColors;
+
+  /**
+   *  The row that the next call to readRow() returns, the strip it lies in,
+   *  and a buffer for its samples.  input holds the next bytes of the strip:
+   *  a view of the whole strip if the file is mapped, or otherwise a buffer
+   *  refilled from the file at filePosition, up to stripEnd.
+   */
+  private int nextRow;
+  private int strip = -1;
+  private byte[] samples;
+  private ByteBuffer input;
+  private long filePosition, stripEnd;
+
+  /**
+   *  The part of a PackBits packet that has not been unpacked yet:  "pending"
+   *  more bytes, which are all "repeat" if isRepeat is true, or are literal
+   *  bytes still to be read from the strip otherwise.
+   */
+  private int pending;
+  private boolean isRepeat;
+  private byte repeat;
+
+  /**
+   *  The runs built by readRuns():  run i starts at pixel runStarts[i] and
+   *  has color runColors[i], for i < runCount.  nextPixel is the index of
+   *  the next pixel to be read.
+   */
+  private int[] runStarts, runColors;
+  private int runCount, nextPixel;
+
+  /**
+   *  TIFFDecoder() opens a TIFF file and reads its first image file
+   *  directory.
+   *
+   *  @param filename the name of the file to read.
+   *  @throws IOException if the file cannot be read or uses a layout this
+   *  class does not handle.
+   */
+  public TIFFDecoder(String filename) throws IOException {
+    this(filename, false);
+  }
+
+  /**
+   *  TIFFDecoder() opens a TIFF file, memory-mapping it if asked to, and
+   *  reads its first image file directory.
+   *
+   *  @param filename the name of the file to read.
+   *  @param mapped true to memory-map the file; false to read it through
+   *  its channel.
+   *  @throws IOException if the file cannot be read or uses a layout this
+   *  class does not handle.
+   */
+  public TIFFDecoder(String filename, boolean mapped) throws IOException {
+    this.mapped = mapped;
+    file = new RandomAccessFile(filename, "r");
+    channel = file.getChannel();
+    try {
+      fileSize = channel.size();
+      ByteBuffer header = read(0, 8, ByteOrder.BIG_ENDIAN);
+      short mark = header.getShort(0);
+      if (mark == 0x4d4d) {
+        order = ByteOrder.BIG_ENDIAN;
+      } else if (mark == 0x4949) {
+        order = ByteOrder.LITTLE_ENDIAN;
+      } else {
+        throw new IOException(filename + " is not a TIFF file.");
+      }
+      header.order(order);
+      if (header.getShort(2) != 42) {
+        throw new IOException(filename + " is not a TIFF file.");
+      }
+      readDirectory(header.getInt(4) & 0xffffffffL);
+      checkLayout();
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+    samples = new byte[width * samplesPerPixel];
+    input = mapped ? ByteBuffer.allocate(0) : ByteBuffer.allocate(1 << 16);
+  }
+
+  /**
+   *  read() returns length bytes at a given file offset, at indices
+   *  0...length - 1 of a buffer.  If the file is mapped, the buffer is
+   *  a read-only view of the mapping.
+   */
+  private ByteBuffer read(long offset, int length, ByteOrder byteOrder)
+    throws IOException {
+    if (mapped) {
+      return view(offset, length).order(byteOrder);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new EOFException("Truncated TIFF file.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   *  view() returns a read-only view of length bytes of the mapped file,
+   *  starting at a given offset.  If the current window does not hold all
+   *  of them, a new window is mapped starting at the offset.
+   */
+  private ByteBuffer view(long offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > fileSize) {
+      throw new EOFException("Truncated TIFF file.");
+    }
+    if (window == null || offset < windowStart ||
+        offset + length > windowStart + window.capacity()) {
+      windowStart = offset;
+      window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                           Math.max(length, Math.min(MAP_SIZE,
+                                                     fileSize - offset)));
+    }
+    ByteBuffer view = window.duplicate();
+    view.position((int) (offset - windowStart));
+    view.limit(view.position() + length);
+    return view.slice();
+  }
+
+  /**
+   *  readDirectory() reads the image file directory (IFD) at the given
+   *  offset and records the fields this class uses.
+   */
+  private void readDirectory(long offset) throws IOException {
+    int count = read(offset, 2, order).getShort() & 0xffff;
+    ByteBuffer entries = read(offset + 2, count * 12, order);
+    for (int i = 0; i < count; i++) {
+      int entry = i * 12;
+      int tag = entries.getShort(entry) & 0xffff;
+      switch (tag) {
+      case 256:
+        width = (int) values(entries, entry)[0];
+        break;
+      case 257:
+        height = (int) values(entries, entry)[0];
+        break;
+      case 258:
+        bitsPerSample = (int) values(entries, entry)[0];
+        for (long bits : values(entries, entry)) {
+          if (bits != bitsPerSample) {
+            throw new IOException("Mixed sample sizes are not supported.");
+          }
+        }
+        break;
+      case 259:
+        compression = (int) values(entries, entry)[0];
+        break;
+      case 262:
+        photometric = (int) values(entries, entry)[0];
+        break;
+      case 273:
+        stripOffsets = values(entries, entry);
+        break;
+      case 277:
+        samplesPerPixel = (int) values(entries, entry)[0];
+        break;
+      case 278:
+        rowsPerStrip = values(entries, entry)[0];
+        break;
+      case 279:
+        stripByteCounts = values(entries, entry);
+        break;
+      case 284:
+        planarConfiguration = (int) values(entries, entry)[0];
+        break;
+      case 320:
+        colorMap = values(entries, entry);
+        break;
+      default:
+        // Other fields (resolution, orientation, ...) do not affect pixels.
+      }
+    }
+  }
+
+  /**
+   *  values() returns the values of the IFD entry that starts at index
+   *  "entry" of "entries".  Values that do not fit in the entry are read
+   *  from the offset it holds.  A field must have at least one value, and
+   *  no more than the file could hold.
+   */
+  private long[] values(ByteBuffer entries, int entry) throws IOException {
+    int tag = entries.getShort(entry) & 0xffff;
+    int type = entries.getShort(entry + 2) & 0xffff;
+    long fieldCount = entries.getInt(entry + 4) & 0xffffffffL;
+    int size;
+    switch (type) {
+    case 1:  // BYTE
+      size = 1;
+      break;
+    case 3:  // SHORT
+      size = 2;
+      break;
+    case 4:  // LONG
+      size = 4;
+      break;
+    default:
+      throw new IOException("Unsupported TIFF field type " + type + ".");
+    }
+    if (fieldCount == 0 ||
+        fieldCount * size > Math.min(fileSize, Integer.MAX_VALUE)) {
+      throw new IOException("TIFF field " + tag + " has an invalid count " +
+                            fieldCount + ".");
+    }
+    int count = (int) fieldCount;
+
+    ByteBuffer data;
+    int base;
+    if (count * size <= 4) {
+      data = entries;
+      base = entry + 8;
+    } else {
+      data = read(entries.getInt(entry + 8) & 0xffffffffL, count * size,
+                  order);
+      base = 0;
+    }
+    long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      int at = base + i * size;
+      if (size == 1) {
+        values[i] = data.get(at) & 0xff;
+      } else if (size == 2) {
+        values[i] = data.getShort(at) & 0xffff;
+      } else {
+        values[i] = data.getInt(at) & 0xffffffffL;
+      }
+    }
+    return values;
+  }
+
+  /**
+   *  checkLayout() throws an IOException if the image uses a layout this
+   *  class cannot decode.
+   */
+  private void checkLayout() throws IOException {
+    if (width <= 0 || height <= 0 || stripOffsets == null ||
+        stripByteCounts == null) {
+      throw new IOException("TIFF file is missing required fields.");
+    }
+    if (bitsPerSample != 8) {
+      throw new IOException("Only 8-bit samples are supported.");
+    }
+    if (compression != 1 && compression != 32773) {
+      throw new IOException("Unsupported TIFF compression " + compression +
+                            ".");
+    }
+    if (planarConfiguration != 1) {
+      throw new IOException("Only chunky (interleaved) samples are " +
+                            "supported.");
+    }
+    boolean gray = photometric == 0 || photometric == 1;
+    if (!(gray && samplesPerPixel >= 1) &&
+        !(photometric == 2 && samplesPerPixel >= 3) &&
+        !(photometric == 3 && samplesPerPixel == 1)) {
+      throw new IOException("Unsupported photometric interpretation " +
+                            photometric + ".");
+    }
+    if (photometric == 3) {
+      if (colorMap == null || colorMap.length != 3 * 256) {
+        throw new IOException("Palette TIFF file has no valid color map.");
+      }
+      sampleColors = new int[256];
+      for (int i = 0; i < 256; i++) {
+        sampleColors[i] = RunList.pack((int) (colorMap[i] >> 8),
+                                       (int) (colorMap[256 + i] >> 8),
+                                       (int) (colorMap[512 + i] >> 8));
+      }
+    } else if (gray) {
+      int invert = photometric == 0 ? 0xff : 0;
+      sampleColors = new int[256];
+      for (int i = 0; i < 256; i++) {
+        int g = GRAY_TO_RGB[i ^ invert] & 0xff;
+        sampleColors[i] = RunList.pack(g, g, g);
+      }
+    }
+    if (rowsPerStrip == 0) {
+      throw new IOException("TIFF file has zero rows per strip.");
+    }
+    if (rowsPerStrip > height) {
+      rowsPerStrip = height;
+    }
+  }
+
+  /**
+   *  getWidth() returns the width of the image.
+   *
+   *  @return the width of the image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   *  getHeight() returns the height of the image.
+   *
+   *  @return the height of the image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   *  getStripCount() returns the number of strips the image is stored in.
+   *
+   *  @return the number of strips.
+   */
+  public int getStripCount() {
+    return stripOffsets.length;
+  }
+
+  /**
+   *  getRowsPerStrip() returns the number of rows in each strip but the
+   *  last, which may have fewer.
+   *
+   *  @return the number of rows per strip.
+   */
+  public int getRowsPerStrip() {
+    return (int) rowsPerStrip;
+  }
+
+  /**
+   *  getStrip() returns a read-only view of the bytes stored for a strip,
+   *  compressed or not, exactly as they appear in the file.  If the file is
+   *  mapped, the view reads the mapping directly; otherwise the strip is
+   *  read into memory.
+   *
+   *  @param i the number of the strip, 0 <= i < getStripCount().
+   *  @return a buffer holding the strip from its position to its limit.
+   *  @throws IOException if the strip cannot be read.
+   */
+  public ByteBuffer getStrip(int i) throws IOException {
+    if (stripByteCounts[i] > Integer.MAX_VALUE) {
+      throw new IOException("Strip " + i + " is too large.");
+    }
+    return read(stripOffsets[i], (int) stripByteCounts[i], order)
+           .asReadOnlyBuffer();
+  }
+
+  /**
+   *  readRow() reads the next row of the image, top to bottom, into row as
+   *  width * 3 interleaved red, green, and blue bytes.
+   *
+   *  @param row the array that receives the row.
+   *  @param offset the index in row where the row begins.
+   *  @throws IOException if the file cannot be read.
+   */
+  public void readRow(byte[] row, int offset) throws IOException {
+    startRow();
+    if (compression == 1) {
+      readFully(samples, 0, samples.length);
+    } else {
+      unpackBits(samples);
+    }
+    nextRow++;
+    convert(samples, row, offset);
+  }
+
+  /**
+   *  startRow() gets ready to read row nextRow, moving to its strip if the
+   *  previous row was in another one.
+   */
+  private void startRow() throws IOException {
+    if (nextRow >= height) {
+      throw new EOFException("All " + height + " rows have been read.");
+    }
+    int rowStrip = (int) (nextRow / rowsPerStrip);
+    if (rowStrip != strip) {
+      strip = rowStrip;
+      if (strip >= stripOffsets.length || strip >= stripByteCounts.length) {
+        throw new IOException("TIFF file is missing strip " + strip + ".");
+      }
+      if (mapped) {
+        input = getStrip(strip);
+      } else {
+        filePosition = stripOffsets[strip];
+        stripEnd = filePosition + stripByteCounts[strip];
+        input.clear().flip();
+      }
+      pending = 0;
+    }
+  }
+
+  /**
+   *  fill() reads the next bytes of the current strip into input, which
+   *  must be empty.
+   */
+  private void fill() throws IOException {
+    if (mapped) {  // The view already holds the whole strip.
+      throw new EOFException("Truncated TIFF strip.");
+    }
+    input.clear();
+    input.limit((int) Math.min(input.capacity(), stripEnd - filePosition));
+    while (input.hasRemaining()) {
+      int n = channel.read(input, filePosition);
+      if (n < 0) {
+        break;
+      }
+      filePosition += n;
+    }
+    input.flip();
+    if (!input.hasRemaining()) {
+      throw new EOFException("Truncated TIFF strip.");
+    }
+  }
+
+  /**
+   *  readFully() fills length bytes of an array from the current strip.
+   */
+  private void readFully(byte[] buffer, int offset, int length)
+    throws IOException {
+    while (length > 0) {
+      if (!input.hasRemaining()) {
+        fill();
+      }
+      int n = Math.min(length, input.remaining());
+      input.get(buffer, offset, n);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /**
+   *  nextByte() returns the next byte of the current strip.
+   */
+  private byte nextByte() throws IOException {
+    if (!input.hasRemaining()) {
+      fill();
+    }
+    return input.get();
+  }
+
+  /**
+   *  unpackBits() fills an array with bytes unpacked from the PackBits
+   *  packets of the current strip.  A packet may continue from one row to
+   *  the next, although our encoder never does that.
+   */
+  private void unpackBits(byte[] buffer) throws IOException {
+    int filled = 0;
+    while (filled < buffer.length) {
+      if (pending == 0) {
+        byte header = nextByte();
+        if (header >= 0) {  // header + 1 literal bytes follow.
+          pending = header + 1;
+          isRepeat = false;
+        } else if (header != -128) {  // The next byte, 1 - header times.
+          pending = 1 - header;
+          isRepeat = true;
+          repeat = nextByte();
+        }  // -128 is a no-op.
+        continue;
+      }
+      int n = Math.min(pending, buffer.length - filled);
+      if (isRepeat) {
+        Arrays.fill(buffer, filled, filled + n, repeat);
+      } else {
+        readFully(buffer, filled, n);
+      }
+      filled += n;
+      pending -= n;
+    }
+  }
+
+  /**
+   *  convert() turns one row of raw samples into interleaved RGB bytes.
+   */
+  private void convert(byte[] samples, byte[] row, int offset) {
+    int spp = samplesPerPixel;
+    if (photometric == 2 && spp == 3) {
+      System.arraycopy(samples, 0, row, offset, width * 3);
+    } else if (photometric == 2) {
+      for (int x = 0; x < width; x++) {
+        System.arraycopy(samples, x * spp, row, offset + x * 3, 3);
+      }
+    } else {
+      for (int x = 0, i = offset; x < width; x++, i += 3) {
+        int color = sampleColors[samples[x * spp] & 0xff];
+        row[i] = (byte) (color >> 16);
+        row[i + 1] = (byte) (color >> 8);
+        row[i + 2] = (byte) color;
+      }
+    }
+  }
+
+  /**
+   *  reserveRuns() makes sure there is room for n more runs.
+   */
+  private void reserveRuns(int n) {
+    if (runCount + n > runStarts.length) {
+      int capacity = Math.max(runStarts.length * 2, runCount + n);
+      runStarts = Arrays.copyOf(runStarts, capacity);
+      runColors = Arrays.copyOf(runColors, capacity);
+    }
+  }
+
+  /**
+   *  emit() adds "length" pixels of a color, starting a new run only if the
+   *  color differs from the last run's.
+   */
+  private void emit(int color, int length) {
+    if (runCount == 0 || color != runColors[runCount - 1]) {
+      reserveRuns(1);
+      runStarts[runCount] = nextPixel;
+      runColors[runCount] = color;
+      runCount++;
+    }
+    nextPixel += length;
+  }
+
+  /**
+   *  emitRow() adds a row of pixels with the given colors.  Like the
+   *  RunLengthEncoding(PixImage) constructor, it writes every pixel into
+   *  the next free slot and keeps the slot only if the color changed, so the
+   *  loop does not branch on the data.
+   */
+  private void emitRow(int[] colors) {
+    reserveRuns(width);
+    int count = runCount;
+    int last = count == 0 ? -1 : runColors[count - 1];
+    for (int x = 0; x < width; x++) {
+      int c = colors[x];
+      runStarts[count] = nextPixel + x;
+      runColors[count] = c;
+      count += c != last ? 1 : 0;
+      last = c;
+    }
+    runCount = count;
+    nextPixel += width;
+  }
+
+  /**
+   *  readRuns() reads every row of the image into a run-length encoding,
+   *  merging runs of the same color across rows and strips, so it needs
+   *  memory only for the runs and one row.  The PackBits packets of palette
+   *  and grayscale images become runs without being unpacked into pixels;
+   *  other rows are decoded one at a time and scanned.
+   *
+   *  @return a run-length encoding of the image.
+   *  @throws IOException if the file cannot be read.
+   */
+  public RunLengthEncoding readRuns() throws IOException {
+    if (nextRow != 0) {
+      throw new IllegalStateException("readRuns() needs a new TIFFDecoder.");
+    }
+    // Run starts are ints, and one row is decoded into width * 3 bytes.
+    if ((long) width * height > Integer.MAX_VALUE ||
+        (long) width * 3 > Integer.MAX_VALUE) {
+      throw new IOException("Image is too large for a RunLengthEncoding.");
+    }
+    runStarts = new int[Math.max(64, width + 1)];
+    runColors = new int[runStarts.length];
+    runCount = 0;
+    nextPixel = 0;
+    int[] colors = new int[width];
+    byte[] row = new byte[width * 3];
+    while (nextRow < height) {
+      startRow();
+      if (compression == 32773 && samplesPerPixel == 1) {
+        emitPackBits();
+        nextRow++;
+        continue;
+      }
+      if (compression == 1) {
+        readFully(samples, 0, samples.length);
+      } else {
+        unpackBits(samples);
+      }
+      nextRow++;
+      if (sampleColors != null) {
+        for (int x = 0; x < width; x++) {
+          colors[x] = sampleColors[samples[x * samplesPerPixel] & 0xff];
+        }
+      } else {
+        convert(samples, row, 0);
+        for (int x = 0, i = 0; x < width; x++, i += 3) {
+          colors[x] = ((row[i] & 0xff) << 16) | ((row[i + 1] & 0xff) << 8) |
+                      (row[i + 2] & 0xff);
+        }
+      }
+      emitRow(colors);
+    }
+    RunLengthEncoding rle =
+      new RunLengthEncoding(width, height,
+                            new RunList(runStarts, runColors, runCount,
+                                        width * height));
+    runStarts = null;
+    runColors = null;
+    return rle;
+  }
+
+  /**
+   *  emitPackBits() turns the PackBits packets of one row of a palette or
+   *  grayscale image into runs.  A repeat packet is one run, however long.
+   */
+  private void emitPackBits() throws IOException {
+    int filled = 0;
+    while (filled < width) {
+      if (pending == 0) {
+        byte header = nextByte();
+        if (header >= 0) {  // header + 1 literal bytes follow.
+          pending = header + 1;
+          isRepeat = false;
+        } else if (header != -128) {  // The next byte, 1 - header times.
+          pending = 1 - header;
+          isRepeat = true;
+          repeat = nextByte();
+        }  // -128 is a no-op.
+        continue;
+      }
+      int n = Math.min(pending, width - filled);
+      if (isRepeat) {
+        emit(sampleColors[repeat & 0xff], n);
+      } else {
+        readFully(samples, 0, n);
+        for (int k = 0; k < n; k++) {
+          emit(sampleColors[samples[k] & 0xff], 1);
+        }
+      }
+      filled += n;
+      pending -= n;
+    }
+  }
+
+  /**
+   *  readPixImage() reads a whole TIFF file into a PixImage, decoding each
+   *  row straight into the image's storage.
+   *
+   *  @param filename the name of the file to read.
+   *  @return a PixImage of the file.
+   *  @throws IOException if the file cannot be read or uses a layout this
+   *  class does not handle.
+   */
+  public static PixImage readPixImage(String filename) throws IOException {
+    return readPixImage(filename, false);
+  }
+
+  /**
+   *  readPixImage() reads a whole TIFF file into a PixImage, memory-mapping
+   *  the file if asked to.
+   *
+   *  @param filename the name of the file to read.
+   *  @param mapped true to memory-map the file.
+   *  @return a PixImage of the file.
+   *  @throws IOException if the file cannot be read or uses a layout this
+   *  class does not handle.
+   */
+  public static PixImage readPixImage(String filename, boolean mapped)
+    throws IOException {
+    TIFFDecoder decoder = new TIFFDecoder(filename, mapped);
+    try {
+      int width = decoder.getWidth(), height = decoder.getHeight();
+      if ((long) width * height * 3 > Integer.MAX_VALUE) {
+        throw new IOException("Image is too large for a PixImage.");
+      }
+      byte[] pixels = new byte[width * height * 3];
+      for (int y = 0; y < height; y++) {
+        decoder.readRow(pixels, y * width * 3);
+      }
+      return new PixImage(width, height, pixels);
+    } finally {
+      decoder.close();
+    }
+  }
+
+  /**
+   *  readRunLengthEncoding() reads a whole TIFF file into a run-length
+   *  encoding without building a PixImage (see readRuns()).
+   *
+   *  @param filename the name of the file to read.
+   *  @param mapped true to memory-map the file.
+   *  @return a run-length encoding of the file.
+   *  @throws IOException if the file cannot be read or uses a layout this
+   *  class does not handle.
+   */
+  public static RunLengthEncoding readRunLengthEncoding(String filename,
+                                                        boolean mapped)
+    throws IOException {
+    TIFFDecoder decoder = new TIFFDecoder(filename, mapped);
+    try {
+      return decoder.readRuns();
+    } finally {
+      decoder.close();
+    }
+  }
+
+  /**
+   *  close() closes the file.
+   *
+   *  @throws IOException if the file cannot be closed.
+   */
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -1,12 +1,5 @@
 /* TIFFEncoder.java */
 
-/* DO NOT CHANGE THIS FILE. */
-/* YOUR SUBMISSION MUST WORK CORRECTLY WITH _OUR_ COPY OF THIS FILE. */
-
-/* You may wish to make temporary changes or insert println() statements     */
-/* while testing your code.  When you're finished testing and debugging,     */
-/* though, make sure your code works with the original version of this file. */
-
 /**
  *  The TIFFEncoder class allows us to write a TIFF file from a pixel array
  *  in PixImage format or from a run-length encoding in RunLengthEncoding
@@ -17,12 +10,19 @@
  *  @author Joel Galenson
  **/
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-
-import javax.imageio.stream.FileImageOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class TIFFEncoder {
 
@@ -32,6 +32,102 @@ public class TIFFEncoder {
    */
   private static enum TiffType { SHORT, LONG }
 
+  /**
+   * For simplicity, we hardcode the number of directory entries we write:
+   * ten for an RGB image, plus the color map for a palette image.
+   */
+  private static final int NUM_DIRS = 10;
+  private static final int NUM_PALETTE_DIRS = 11;
+
+  /**
+   * The size (in bytes) of various parts of TIFF images.  Our files are laid
+   * out as the header, then the image file directory (IFD), then the "bits
+   * per sample" values (RGB) or color map (palette) it points to, then (if
+   * there is more than one strip) the arrays of strip offsets and strip byte
+   * counts, then the image data.  Everything but the sizes of the compressed
+   * strips is known before the data is written.  DATA_OFFSET and
+   * PALETTE_DATA_OFFSET are where the image data of a one-strip file begins.
+   */
+  private static final int HEADER_SIZE = 8;
+  private static final int DIR_SIZE = 12;
+  private static final int IFD_SIZE = 2 + DIR_SIZE * NUM_DIRS + 4;
+  private static final int BITS_OFFSET = HEADER_SIZE + IFD_SIZE;
+  private static final int DATA_OFFSET = BITS_OFFSET + 6;
+  private static final int COLOR_MAP_OFFSET = HEADER_SIZE + 2 +
+                                              DIR_SIZE * NUM_PALETTE_DIRS + 4;
+  private static final int PALETTE_DATA_OFFSET = COLOR_MAP_OFFSET + 3 * 256 * 2;
+
+  /**
+   * The file offset of the value of the "strip byte count" IFD entry (entry
+   * 8 in both layouts).  In a one-strip file it holds the byte count itself,
+   * which is patched once the compressed data has been written.
+   */
+  private static final int BYTE_COUNT_OFFSET = HEADER_SIZE + 2 +
+                                               DIR_SIZE * 8 + 8;
+
+  /**
+   * The largest file we can write.  Strip offsets and byte counts are
+   * unsigned 32-bit TIFF LONGs, so no byte of the file may lie beyond this.
+   */
+  private static final long MAX_FILE_SIZE = 0xffffffffL;
+
+  /**
+   * The largest number of colors a palette image can have.
+   */
+  private static final int MAX_COLORS = 256;
+
+  /**
+   * The size of the buffer that image data is gathered in before it is
+   * written to the file.
+   */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Unless setRowsPerStrip() says otherwise, a strip holds as many rows as
+   * fit in this many bytes of uncompressed samples (but at least one).
+   */
+  private static final int STRIP_SIZE = 1 << 16;
+
+  /**
+   * rowsPerStrip is the number of rows in each strip of the files we write,
+   * or 0 to size strips by STRIP_SIZE.
+   */
+  private static volatile int rowsPerStrip;
+
+  /**
+   * compressionPool is the pool that compressed strips are packed on.  If it
+   * is null, strips are packed on the thread that writes the rows.
+   */
+  private static volatile ForkJoinPool compressionPool;
+
+  /**
+   * setRowsPerStrip() sets the number of rows in each strip of the TIFF
+   * files written from now on.  Smaller strips let a reader decode part of
+   * an image without the rest, and give the compression pool smaller pieces
+   * of work.  The last strip of an image may be shorter.
+   *
+   * @param rows the number of rows per strip, or 0 (the default) to make
+   * each strip about 64 KB before compression.  A value of at least the
+   * height of an image writes it as one strip.
+   */
+  public static void setRowsPerStrip(int rows) {
+    if (rows < 0) {
+      throw new IllegalArgumentException("rows must be nonnegative.");
+    }
+    rowsPerStrip = rows;
+  }
+
+  /**
+   * setCompressionPool() selects the ForkJoinPool that compressed strips are
+   * packed on in parallel.  Pass null (the default) to pack them on the
+   * writing thread.  The file written is identical either way.
+   *
+   * @param pool the pool to use, or null for sequential compression.
+   */
+  public static void setCompressionPool(ForkJoinPool pool) {
+    compressionPool = pool;
+  }
+
   /**
    * getTypeInt() returns the integer flag for the specified TIFF type, which
    * is used to specify which type the value has.
@@ -52,24 +148,22 @@ public class TIFFEncoder {
 
   /**
    * writeLeftAlignedValue() writes a given value of the given type into
-   * a given stream as a left-justified four-byte record.
+   * a given buffer as a left-justified four-byte record.
    * See Section 2 (page 15) of the TIFF spec for details.
    *
-   * @param stream the stream representing the file being written.
+   * @param buffer the buffer holding the start of the file being written.
    * @param type the type of the value.
    * @param val the value to write.
-   * @throws IOException
    */
-  private static void writeLeftAlignedValue(FileImageOutputStream stream,
-                                            TiffType type, int val)
-                                           throws IOException {
+  private static void writeLeftAlignedValue(ByteBuffer buffer, TiffType type,
+                                            int val) {
     switch (type) {
     case SHORT:
-      stream.writeShort(val);
-      stream.writeShort(0);
+      buffer.putShort((short) val);
+      buffer.putShort((short) 0);
       break;
     case LONG:
-      stream.writeInt(val);
+      buffer.putInt(val);
       break;
     default:  // There are other possible types, but we're not using them.
       throw new IllegalArgumentException();
@@ -81,19 +175,17 @@ public class TIFFEncoder {
    * fits into the Value Offset.
    * See Section 2 (page 15) of the TIFF spec for more details.
    *
-   * @param stream the stream representing the file being written.
+   * @param buffer the buffer holding the start of the file being written.
    * @param tag the tag that identifies the field.
    * @param type the type of the value.
    * @param value the value of the field.
-   * @throws IOException
    */
-  private static void writeValueTag(FileImageOutputStream stream, int tag,
-                                    TiffType type, int value)
-                                   throws IOException {
-    stream.writeShort(tag);
-    stream.writeShort(getTypeInt(type));
-    stream.writeInt(1);
-    writeLeftAlignedValue(stream, type, value);
+  private static void writeValueTag(ByteBuffer buffer, int tag, TiffType type,
+                                    int value) {
+    buffer.putShort((short) tag);
+    buffer.putShort((short) getTypeInt(type));
+    buffer.putInt(1);
+    writeLeftAlignedValue(buffer, type, value);
   }
 
   /**
@@ -101,100 +193,155 @@ public class TIFFEncoder {
    * does not fit into the Value Offset, so we store it at another offset.
    * See Section 2 (page 15) of the TIFF spec for more details.
    *
-   * @param stream the stream representing the file being written.
+   * @param buffer the buffer holding the start of the file being written.
    * @param tag the tag that identifies the field.
    * @param type the type of the value.
    * @param count the number of values of the indicated type. 
    * @param offset the offset in the file where the actual value is stored.
-   * @throws IOException
    */
-  private static void writeOffsetTag(FileImageOutputStream stream, int tag,
-                                     TiffType type, int count, int offset)
-                                    throws IOException {
-    stream.writeShort(tag);
-    stream.writeShort(getTypeInt(type));
-    stream.writeInt(count);
+  private static void writeOffsetTag(ByteBuffer buffer, int tag,
+                                     TiffType type, int count, int offset) {
+    buffer.putShort((short) tag);
+    buffer.putShort((short) getTypeInt(type));
+    buffer.putInt(count);
     // The offset is always a LONG (a 32-bit TiffType).
-    writeLeftAlignedValue(stream, TiffType.LONG, offset);
+    writeLeftAlignedValue(buffer, TiffType.LONG, offset);
   }
 
   /**
-   * writeTIFF() writes the specified data into a TIFF file.
+   * writeHeader() writes everything that precedes the image data of a TIFF
+   * file:  the header, the image file directory (IFD), and the "bits per
+   * sample" values or color map the IFD points to.  The strip offset and
+   * byte count arrays of a multi-strip file are written by the caller.
    * For more details, see the TIFF spec at
    * http://partners.adobe.com/public/developer/en/tiff/TIFF6.pdf.
    * This code adapted from http://paulbourke.net/dataformats/tiff/.
    *
-   * @param data the bytes of the image data.
+   * @param buffer the buffer to write into, in big-endian order.
    * @param width the width of the image.
    * @param height the height of the image.
-   * @param filename the name of the file to write.
+   * @param rows the number of rows per strip.
+   * @param dataSize the number of bytes of image data of a one-strip file,
+   * or 0 if it is not known yet (in which case it must be patched at
+   * BYTE_COUNT_OFFSET).
    * @param isCompressed true if the data is compressed in PackBits format;
    * false if it is stored uncompressed.
+   * @param palette the colors of a palette image, packed as 0xRRGGBB, or
+   * null for an RGB image.
    */
-  private static void writeTIFF(ArrayList<Short> data, int width, int height,
-                                String filename, boolean isCompressed) {
-    // For simplicity, we hardcode the number of directories we're writing.
-    final int NUM_DIRS = 10;
-    // The size (in bytes) of various parts of TIFF images.
-    final int HEADER_SIZE = 8;
-    final int DIR_SIZE = 12;
+  private static void writeHeader(ByteBuffer buffer, int width, int height,
+                                  int rows, long dataSize,
+                                  boolean isCompressed, int[] palette) {
+    int strips = (height + rows - 1) / rows;
+    int tableOffset = palette == null ? DATA_OFFSET : PALETTE_DATA_OFFSET;
+    buffer.putShort((short) 0x4d4d);  // Big-endian byte order.
+    buffer.putShort((short) 42);  // Magic number for TIFF files.
+    buffer.putInt(HEADER_SIZE);  // Offset of image file dir.
 
-    try {
-      FileImageOutputStream stream =
-        new FileImageOutputStream(new File(filename));
-      
-      // Write the header.
-      stream.writeShort(0x4d4d);  // Big-endian byte order.
-      stream.writeShort(42);  // Magic number for TIFF files.
-      stream.writeInt(data.size() + HEADER_SIZE);  // Offset of image file dir.
-
-      // Write the image data.
-      for (Short datum: data) {
-        stream.writeByte(datum);
-      }
+    // Images up to 65535 pixels on a side use SHORT dimensions, as always;
+    // larger ones need LONG.
+    TiffType sizeType = Math.max(width, height) > 0xffff ? TiffType.LONG
+                                                           : TiffType.SHORT;
+    // Number of IFD entries.
+    buffer.putShort((short) (palette == null ? NUM_DIRS : NUM_PALETTE_DIRS));
+    // IFD entry 0:  Image width.
+    writeValueTag(buffer, 256, sizeType, width);
+    // IFD entry 1:  Image height.
+    writeValueTag(buffer, 257, sizeType, height);
+    // IFD entry 2:  Bits per sample.  A palette index is one 8-bit sample.
+    if (palette == null) {
+      writeOffsetTag(buffer, 258, TiffType.SHORT, 3, BITS_OFFSET);
+    } else {
+      writeValueTag(buffer, 258, TiffType.SHORT, 8);
+    }
+    // IFD entry 3:  Compression tag.  1 means no compression.
+    // 32773 means "PackBits compression", a run-length encoding.
+    writeValueTag(buffer, 259, TiffType.SHORT, isCompressed ? 32773 : 1);
+    // IFD entry 4:  Photometric tag.  2 means it's a full-color RGB image;
+    //   3 means each pixel is an index into a color map.
+    writeValueTag(buffer, 262, TiffType.SHORT, palette == null ? 2 : 3);
+    // IFD entry 5:  "StripOffsets".  The byte offset of each strip.  One
+    //   offset fits in the entry; more are stored in an array.
+    if (strips == 1) {
+      writeValueTag(buffer, 273, TiffType.LONG, tableOffset);
+    } else {
+      writeOffsetTag(buffer, 273, TiffType.LONG, strips, tableOffset);
+    }
+    // IFD entry 6:  Samples per pixel.  3 for red, green, and blue, or 1 for
+    //   a palette index.
+    writeValueTag(buffer, 277, TiffType.SHORT, palette == null ? 3 : 1);
+    // IFD entry 7:  Rows per strip.
+    writeValueTag(buffer, 278, sizeType, rows);
+    // IFD entry 8:  "Strip byte count"; number of bytes in each strip.
+    if (strips == 1) {
+      writeValueTag(buffer, 279, TiffType.LONG, (int) dataSize);
+    } else {
+      writeOffsetTag(buffer, 279, TiffType.LONG, strips,
+                     tableOffset + 4 * strips);
+    }
+    // IFD entry 9:  Planar configuration.  1 means each pixel is continuous
+    //   (as opposed to separate sections for red, green, and blue).
+    writeValueTag(buffer, 284, TiffType.SHORT, 1);
+    if (palette != null) {
+      // IFD entry 10:  Color map.  All the reds, then all the greens, then
+      //   all the blues, each scaled to 16 bits.
+      writeOffsetTag(buffer, 320, TiffType.SHORT, 3 * 256, COLOR_MAP_OFFSET);
+    }
+
+    // Four bytes of zero signify that there are no more IFDs.
+    buffer.putInt(0);
 
-      // Write the footer, including an image file directory (IFD).
-      stream.writeShort(NUM_DIRS);  // Number of image file directory entries.
-      // TODO:  width and height and others below could be LONG (32 bits).
-      // IFD entry 0:  Image width.
-      writeValueTag(stream, 256, TiffType.SHORT, width);
-      // IFD entry 1:  Image height.
-      writeValueTag(stream, 257, TiffType.SHORT, height);
-      // IFD entry 2:  Bits per sample.
-      writeOffsetTag(stream, 258, TiffType.SHORT, 3,
-                     data.size() + HEADER_SIZE + DIR_SIZE * NUM_DIRS + 6);
-      // IFD entry 3:  Compression tag.  1 means no compression.
-      // 32773 means "PackBits compression", a run-length encoding.
-      writeValueTag(stream, 259, TiffType.SHORT, isCompressed ? 32773 : 1);
-      // IFD entry 4:  Photometric tag.  2 means it's a full-color RGB image.
-      writeValueTag(stream, 262, TiffType.SHORT, 2);
-      // IFD entry 5:  "StripOffsets".  The byte offset of the image.
-      writeValueTag(stream, 273, TiffType.LONG, HEADER_SIZE);
-      // IFD entry 6:  Samples per pixel.  3 for red, green, and blue.
-      writeValueTag(stream, 277, TiffType.SHORT, 3);
-      // IFD entry 7:  Rows per strip.  Our image is encoded as just one strip.
-      writeValueTag(stream, 278, TiffType.SHORT, height);
-      // IFD entry 8:  "Strip byte count"; number of bytes in the image.
-      writeValueTag(stream, 279, TiffType.LONG, data.size());
-      // IFD entry 9:  Planar configuration.  1 means each pixel is continuous
-      //   (as opposed to separate sections for red, green, and blue).
-      writeValueTag(stream, 284, TiffType.SHORT, 1);
-
-      // Four bytes of zero signify that there are no more IFDs.
-      stream.writeInt(0);
-      
+    if (palette == null) {
       // Write the "bits per sample" data for IFD entry 2 (above).
       // There are 8 bits for red, 8 for green, and 8 for blue.
       for (int i = 0; i < 3; i++) {
-        stream.writeShort(8);
+        buffer.putShort((short) 8);
       }
+    } else {
+      // Write the color map for IFD entry 10.  Unused entries are black.
+      for (int shift = 16; shift >= 0; shift -= 8) {
+        for (int i = 0; i < 256; i++) {
+          int value = i < palette.length ? (palette[i] >> shift) & 0xff : 0;
+          buffer.putShort((short) (value * 257));
+        }
+      }
+    }
+  }
 
-      stream.close();
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
+  /**
+   * grayPalette() returns the palette whose color i is the gray (i, i, i).
+   * A grayscale image written with it stores each intensity as its own
+   * index.
+   *
+   * @return the gray palette.
+   */
+  static int[] grayPalette() {
+    int[] palette = new int[MAX_COLORS];
+    for (int i = 0; i < MAX_COLORS; i++) {
+      palette[i] = RunList.pack(i, i, i);
     }
+    return palette;
+  }
+
+  /**
+   * palette() returns a palette for a run-length encoding:  the gray palette
+   * if every run is gray, the sorted colors of the runs if there are at most
+   * MAX_COLORS of them, or null if there are more.
+   *
+   * @param rle the run-length encoding.
+   * @return a palette holding every color of rle, or null.
+   */
+  static int[] palette(RunLengthEncoding rle) {
+    // Edge images are entirely gray, which is cheap to detect.
+    RunCursor cursor = rle.cursor();
+    boolean gray = true;
+    while (gray && cursor.advance()) {
+      gray = cursor.red() == cursor.green() && cursor.red() == cursor.blue();
+    }
+    if (gray) {
+      return grayPalette();
+    }
+    return rle.distinctColors(MAX_COLORS);
   }
 
   /**
@@ -204,79 +351,534 @@ public class TIFFEncoder {
    * @param filename the name of the file to write.
    */
   public static void writeTIFF(PixImage image, String filename) {
-    ArrayList<Short> pixels =
-      new ArrayList<Short>(image.getWidth() * image.getHeight() * 3);
-    // Note that our for loops iterate in this order so we write by rows.
-    for (int j = 0; j < image.getHeight(); j++) {
-      for (int i = 0; i < image.getWidth(); i++) {
-        pixels.add(image.getRed(i, j));
-        pixels.add(image.getGreen(i, j));
-        pixels.add(image.getBlue(i, j));
+    try {
+      write(image, filename);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * write() is writeTIFF(PixImage, String), but throws an exception if the
+   * file cannot be written, in which case no file is left behind.
+   *
+   * @param image the PixImage.
+   * @param filename the name of the file to write.
+   * @throws IOException if the file cannot be written.
+   */
+  static void write(PixImage image, String filename) throws IOException {
+    // PixImage rows are already interleaved red, green, blue, which is
+    // exactly the layout of an uncompressed chunky TIFF strip.
+    RowWriter writer = new RowWriter(filename, image.getWidth(),
+                                     image.getHeight(), false);
+    try {
+      byte[] row = new byte[image.getWidth() * 3];
+      for (int j = 0; j < image.getHeight(); j++) {
+        image.getRow(j, row, 0);
+        writer.writeRow(row, 0);
       }
+      writer.close();
+    } finally {
+      writer.abort();
     }
-    writeTIFF(pixels, image.getWidth(), image.getHeight(), filename, false);
   }
 
   /**
    * writeTIFF() writes the given image data into a compressed TIFF file.
+   * An image with at most 256 colors is written as a palette image, so that
+   * each pixel is one byte and a run of any color compresses into repeat
+   * packets; other images are written as RGB.
    *
    * @param rle a run-length encoding of the image data.
    * @param filename the name of the file to write.
    */
   public static void writeTIFF(RunLengthEncoding rle, String filename) {
-    ArrayList<Short> pixels = new ArrayList<Short>();
-
-    int currentX = 0;  // x-position of the next pixel.
-    for (RunIterator it = rle.iterator(); it.hasNext(); ) {
-      int[] run = it.next();
-
-      // The TIFF format can compress repeated bytes, so it can express a run
-      // of grayscale values in compressed form; but it cannot compress
-      // repeated red-green-blue triples if the red, green, and blue values are
-      // not all the same.  So we check for a grayscale value (in which the
-      // red, green, and blue values are equal).
-      if (run[1] == run[2] && run[1] == run[3]) {
-        // It's a grayscale run.  We can write the run in a compressed format.
-        int i = 0;
-        while (i < run[0] * 3) {  // run[0] is the number of pixels in the run.
-          // Figure the number of bytes to write in one run.  Note that it is
-          // always a factor of 3.
-          int curCount = Math.min(Math.min(run[0] * 3 - i, 126),
-                                  (rle.getWidth() - currentX) * 3);
-          pixels.add((short) (1 - curCount));  // # of times value is repeated.
-          pixels.add((short) run[1]);  // The value that is repeated.
-
-          // The TIFF format does not allow you to compress across row
-          // boundaries, so we must keep track of the current column so we can
-          // break a run into smaller runs if it spans multiple rows.
-          currentX = (currentX + curCount / 3) % rle.getWidth();
-          i += curCount;
+    try {
+      write(rle, filename);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * write() is writeTIFF(RunLengthEncoding, String), but throws an
+   * exception if the file cannot be written, in which case no file is left
+   * behind.
+   *
+   * @param rle a run-length encoding of the image data.
+   * @param filename the name of the file to write.
+   * @throws IOException if the file cannot be written.
+   */
+  static void write(RunLengthEncoding rle, String filename)
+    throws IOException {
+    int[] palette = palette(rle);
+    RowWriter writer;
+    if (palette == null) {
+      writer = new RowWriter(filename, rle.getWidth(), rle.getHeight(), true);
+    } else {
+      writer = new RowWriter(filename, rle.getWidth(), rle.getHeight(),
+                             palette);
+    }
+    try {
+      writer.writeRuns(rle);
+      writer.close();
+    } finally {
+      writer.abort();
+    }
+  }
+
+  /**
+   * The RowWriter class writes a TIFF file one row at a time, top to bottom,
+   * so that an image never has to be held in memory all at once.  Rows are
+   * passed in the interleaved red, green, blue layout of PixImage.getRow().
+   * The file has the same layout as the ones written by writeTIFF().
+   *
+   * A RowWriter made with a palette writes a compressed palette image:  each
+   * pixel is stored as the index of its color, and every color in the image
+   * must be in the palette.  Otherwise the file is an RGB image, compressed
+   * or not.  Compressed rows are coded in PackBits format, byte by byte,
+   * one row at a time.
+   *
+   * The image is divided into strips of rows, as setRowsPerStrip() directs.
+   * The header and image file directory are written first, since every
+   * offset in them is known in advance.  Image data is gathered in a direct
+   * buffer and written to the file's channel whenever the buffer fills, so
+   * memory use does not depend on the size of the image.  If a compression
+   * pool has been set, the rows of each compressed strip are collected and
+   * packed on the pool while later strips are being gathered; packed strips
+   * are written in order.  The offset and size of each strip are recorded
+   * by close().
+   */
+  public static class RowWriter {
+
+    private final Path path;
+    private final FileChannel channel;
+    private boolean closed;
+    private final ByteBuffer buffer;
+    private final int width, height;
+    private final boolean isCompressed;
+    private final int[] palette;
+    private final boolean isGrayPalette;
+    private final byte[] indices;
+
+    /**
+     * rowSize is the number of bytes in a stored row:  three per pixel, or
+     * one per pixel with a palette.  packed holds one row compressed on
+     * the writing thread.
+     */
+    private final int rowSize;
+    private final byte[] packed;
+
+    /**
+     * The layout of the strips, and the byte count of each strip written so
+     * far.
+     */
+    private final int rowsPerStrip, strips;
+    private final long dataOffset;
+    private final long[] stripByteCounts;
+    private int rows;
+
+    /**
+     * pool packs compressed strips, or is null.  strip collects the rows of
+     * the current strip for it; pending holds the strips being packed, in
+     * order, and written is the number of strips already in the buffer.
+     */
+    private final ForkJoinPool pool;
+    private byte[] strip;
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending =
+      new ArrayDeque<ForkJoinTask<byte[]>>();
+    private int written;
+
+    /**
+     * RowWriter() creates an RGB TIFF file and writes its header.
+     *
+     * @param filename the name of the file to write.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param isCompressed true to compress the rows in PackBits format.
+     * @throws IOException if the file cannot be created.
+     */
+    public RowWriter(String filename, int width, int height,
+                     boolean isCompressed) throws IOException {
+      this(filename, width, height, isCompressed, null);
+    }
+
+    /**
+     * RowWriter() creates a compressed palette TIFF file and writes its
+     * header.
+     *
+     * @param filename the name of the file to write.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param palette at most 256 distinct colors, packed as 0xRRGGBB and
+     * sorted in increasing order.
+     * @throws IOException if the file cannot be created.
+     */
+    public RowWriter(String filename, int width, int height, int[] palette)
+      throws IOException {
+      this(filename, width, height, true, checkPalette(palette));
+    }
+
+    /**
+     * checkPalette() returns a copy of a palette, or throws an
+     * IllegalArgumentException if it is too long or not sorted.
+     */
+    private static int[] checkPalette(int[] palette) {
+      if (palette.length > MAX_COLORS) {
+        throw new IllegalArgumentException("A palette has at most " +
+                                           MAX_COLORS + " colors.");
+      }
+      for (int i = 1; i < palette.length; i++) {
+        if (palette[i - 1] >= palette[i]) {
+          throw new IllegalArgumentException("The palette is not sorted.");
         }
+      }
+      return palette.clone();
+    }
+
+    private RowWriter(String filename, int width, int height,
+                      boolean isCompressed, int[] palette) throws IOException {
+      this.width = width;
+      this.height = height;
+      this.isCompressed = isCompressed;
+      this.palette = palette;
+      isGrayPalette = palette != null && Arrays.equals(palette, grayPalette());
+      rowSize = palette == null ? width * 3 : width;
+      indices = palette == null ? null : new byte[width];
+      packed = isCompressed ? new byte[maxPacked(rowSize)] : null;
+
+      int perStrip = TIFFEncoder.rowsPerStrip;
+      if (perStrip == 0) {
+        perStrip = Math.max(1, STRIP_SIZE / Math.max(1, rowSize));
+      }
+      rowsPerStrip = Math.max(1, Math.min(perStrip, height));
+      strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+      stripByteCounts = new long[strips];
+      long tableOffset = palette == null ? DATA_OFFSET : PALETTE_DATA_OFFSET;
+      dataOffset = strips == 1 ? tableOffset : tableOffset + 8L * strips;
+      pool = isCompressed && strips > 1 ? compressionPool : null;
+
+      // Uncompressed rows are copied in pieces; a compressed row needs room
+      // for its worst case, one literal header per 128 bytes.
+      int size = isCompressed ? Math.max(BUFFER_SIZE, maxPacked(rowSize))
+                              : BUFFER_SIZE;
+      buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.BIG_ENDIAN);
+      if (!isCompressed && dataOffset + (long) rowSize * height >
+                           MAX_FILE_SIZE) {
+        throw new IOException("A " + width + "x" + height + " image is too " +
+                              "large for an uncompressed TIFF file.");
+      }
+      path = Paths.get(filename);
+      channel = FileChannel.open(path,
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE,
+                                 StandardOpenOption.TRUNCATE_EXISTING);
+      writeHeader(buffer, width, height, rowsPerStrip,
+                  isCompressed ? 0 : (long) width * height * 3, isCompressed,
+                  palette);
+      // The strip arrays, if any, are filled in by close().
+      flush();
+      channel.position(dataOffset);
+    }
+
+    /**
+     * maxPacked() returns the most bytes that PackBits can compress n bytes
+     * into.
+     */
+    private static int maxPacked(int n) {
+      return n + (n + 127) / 128;
+    }
+
+    /**
+     * flush() writes the contents of the buffer to the file and empties it.
+     */
+    private void flush() throws IOException {
+      // Checking every write keeps the (int) casts of offsets and byte
+      // counts in writeHeader() and close() from wrapping.
+      if (channel.position() + buffer.position() > MAX_FILE_SIZE) {
+        throw new IOException("The image is too large for a TIFF file.");
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    /**
+     * reserve() makes sure the buffer has room for n more bytes.
+     */
+    private void reserve(int n) throws IOException {
+      if (buffer.remaining() < n) {
+        flush();
+      }
+    }
+
+    /**
+     * put() appends n bytes to the buffer, flushing it as often as needed.
+     */
+    private void put(byte[] data, int offset, int n) throws IOException {
+      int done = 0;
+      while (done < n) {
+        if (!buffer.hasRemaining()) {
+          flush();
+        }
+        int count = Math.min(n - done, buffer.remaining());
+        buffer.put(data, offset + done, count);
+        done += count;
+      }
+    }
+
+    /**
+     * writeRow() appends the next row of the image.
+     *
+     * @param row the array holding the row.
+     * @param offset the index in row where the row begins.
+     * @throws IOException if the row cannot be written.
+     * @throws IllegalArgumentException if the writer has a palette that
+     * does not hold the color of some pixel of the row.
+     */
+    public void writeRow(byte[] row, int offset) throws IOException {
+      if (rows == height) {
+        throw new IllegalStateException("All " + height +
+                                        " rows have been written.");
+      }
+      if (palette != null) {
+        for (int x = 0, i = offset; x < width; x++, i += 3) {
+          indices[x] = index(RunList.pack(row[i] & 0xff, row[i + 1] & 0xff,
+                                          row[i + 2] & 0xff));
+        }
+        putRow(indices, 0);
       } else {
-        // Not grayscale.  We must write every pixel individually.
-    	// But we can still encode them as a combined literal run.
-        int i = 0;
-        while (i < run[0] * 3) {  // run[0] is the number of pixels in the run.
-          // Figure the number of bytes to write in one literal.  Note that it
-          // is always a factor of 3.
-          int curCount = Math.min(Math.min(run[0] * 3 - i, 126),
-                                  (rle.getWidth() - currentX) * 3);
-          pixels.add((short) (curCount - 1));  // Number of literal values.
-          for (int j = 0; j < curCount / 3; j++) {  // The literal values.
-            pixels.add((short) run[1]);  // Red.
-            pixels.add((short) run[2]);  // Green.
-            pixels.add((short) run[3]);  // Blue.
+        putRow(row, offset);
+      }
+    }
+
+    /**
+     * putRow() appends the next row, already in its stored form (samples or
+     * palette indices), to the current strip.
+     */
+    private void putRow(byte[] row, int offset) throws IOException {
+      int s = rows / rowsPerStrip;
+      if (!isCompressed) {
+        put(row, offset, rowSize);
+        stripByteCounts[s] += rowSize;
+      } else if (pool == null) {
+        int n = packBits(row, offset, rowSize, packed, 0);
+        reserve(n);
+        buffer.put(packed, 0, n);
+        stripByteCounts[s] += n;
+      } else {
+        if (strip == null) {
+          strip = new byte[Math.min(rowsPerStrip, height - s * rowsPerStrip) *
+                           rowSize];
+        }
+        System.arraycopy(row, offset, strip, (rows % rowsPerStrip) * rowSize,
+                         rowSize);
+      }
+      rows++;
+      if (pool != null && (rows % rowsPerStrip == 0 || rows == height)) {
+        submitStrip();
+      }
+    }
+
+    /**
+     * submitStrip() hands the rows collected in strip to the pool to pack.
+     * To bound the memory held by strips in flight, it first writes the
+     * oldest packed strips if too many are pending.
+     */
+    private void submitStrip() throws IOException {
+      final byte[] raw = strip;
+      strip = null;
+      while (pending.size() >= 2 * pool.getParallelism()) {
+        writeStrip(pending.remove().join());
+      }
+      pending.add(pool.submit(new Callable<byte[]>() {
+          public byte[] call() {
+            byte[] out = new byte[(raw.length / rowSize) * maxPacked(rowSize)];
+            int n = 0;
+            for (int i = 0; i < raw.length; i += rowSize) {
+              n = packBits(raw, i, rowSize, out, n);
+            }
+            return Arrays.copyOf(out, n);
+          }
+        }));
+    }
+
+    /**
+     * writeStrip() appends the next packed strip to the buffer.
+     */
+    private void writeStrip(byte[] data) throws IOException {
+      put(data, 0, data.length);
+      stripByteCounts[written++] = data.length;
+    }
+
+    /**
+     * index() returns the index of a color in the palette.
+     */
+    private byte index(int color) {
+      if (isGrayPalette && (color >> 16) == (color & 0xff) &&
+          ((color >> 8) & 0xff) == (color & 0xff)) {
+        return (byte) color;
+      }
+      int i = Arrays.binarySearch(palette, color);
+      if (i < 0) {
+        throw new IllegalArgumentException("Color 0x" +
+                                           Integer.toHexString(color) +
+                                           " is not in the palette.");
+      }
+      return (byte) i;
+    }
+
+    /**
+     * packBits() compresses n bytes of one row into PackBits packets, which
+     * are stored in out starting at index pos.  A run of three or more equal
+     * bytes, or two that do not follow a literal packet, becomes a repeat
+     * packet; the bytes between such runs are copied into literal packets of
+     * up to 128 bytes.  out must have room for maxPacked(n) bytes.
+     *
+     * @return the index in out just past the packets.
+     */
+    private static int packBits(byte[] data, int offset, int n, byte[] out,
+                                int pos) {
+      int end = offset + n;
+      int i = offset;
+      while (i < end) {
+        byte value = data[i];
+        int run = 1;
+        while (i + run < end && run < 128 && data[i + run] == value) {
+          run++;
+        }
+        if (run >= 2) {
+          out[pos++] = (byte) (1 - run);  // # of times value is repeated.
+          out[pos++] = value;  // The value that is repeated.
+          i += run;
+          continue;
+        }
+        // The literal packet ends where a run of three begins.
+        int j = i + 1;
+        while (j < end && j - i < 128 &&
+               (j + 2 >= end || data[j] != data[j + 1] ||
+                data[j] != data[j + 2])) {
+          j++;
+        }
+        out[pos++] = (byte) (j - i - 1);  // Number of literal values.
+        System.arraycopy(data, i, out, pos, j - i);  // The literal values.
+        pos += j - i;
+        i = j;
+      }
+      return pos;
+    }
+
+    /**
+     * writeRuns() writes a whole run-length encoding, one row at a time.
+     * Rows are filled straight from the runs, so no PixImage is built.
+     *
+     * @param rle the run-length encoding to write.
+     * @throws IOException if the data cannot be written.
+     * @throws IllegalArgumentException if the writer has a palette that
+     * does not hold every color of the encoding.
+     */
+    void writeRuns(RunLengthEncoding rle) throws IOException {
+      if (!isCompressed || rows != 0) {
+        throw new IllegalStateException("writeRuns() needs a new " +
+                                        "compressed RowWriter.");
+      }
+      byte[] row = palette == null ? new byte[width * 3] : indices;
+      int x = 0;  // x-position of the next pixel.
+      RunCursor cursor = rle.cursor();
+      while (cursor.advance()) {
+        int length = cursor.length();
+        int color = RunList.pack(cursor.red(), cursor.green(), cursor.blue());
+        byte red = (byte) (color >> 16), green = (byte) (color >> 8),
+             blue = (byte) color;
+        byte value = palette == null ? 0 : index(color);
+        // The TIFF format does not allow you to compress across row
+        // boundaries, so a run that spans several rows is split.
+        while (length > 0) {
+          int count = Math.min(length, width - x);
+          if (palette != null) {
+            Arrays.fill(row, x, x + count, value);
+          } else {
+            for (int i = x * 3; i < (x + count) * 3; i += 3) {
+              row[i] = red;
+              row[i + 1] = green;
+              row[i + 2] = blue;
+            }
+          }
+          x += count;
+          length -= count;
+          if (x == width) {
+            putRow(row, 0);
+            x = 0;
           }
+        }
+      }
+    }
 
-          // The TIFF format does not allow you to compress across row
-          // boundaries, so we must keep track of the current column so we can
-          // break a run into smaller runs if it spans multiple rows.
-          currentX = (currentX + curCount / 3) % rle.getWidth();
-          i += curCount;
+    /**
+     * close() writes any buffered data and strips still being packed,
+     * records the offset and size of every strip in the image file
+     * directory, and closes the file.  Every row of the image must have been
+     * written.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void close() throws IOException {
+      if (rows != height) {
+        throw new IllegalStateException("Only " + rows + " of " + height +
+                                        " rows were written.");
+      }
+      while (!pending.isEmpty()) {
+        writeStrip(pending.remove().join());
+      }
+      flush();
+      if (strips == 1) {
+        if (isCompressed) {
+          ByteBuffer count = ByteBuffer.allocate(4)
+                                       .order(ByteOrder.BIG_ENDIAN);
+          count.putInt(0, (int) stripByteCounts[0]);
+          channel.write(count, BYTE_COUNT_OFFSET);
+        }
+      } else {
+        ByteBuffer tables = ByteBuffer.allocate(8 * strips)
+                                      .order(ByteOrder.BIG_ENDIAN);
+        long offset = dataOffset;
+        for (int i = 0; i < strips; i++) {
+          tables.putInt(i * 4, (int) offset);
+          tables.putInt((strips + i) * 4, (int) stripByteCounts[i]);
+          offset += stripByteCounts[i];
+        }
+        long position = dataOffset - 8L * strips;
+        while (tables.hasRemaining()) {
+          position += channel.write(tables, position);
         }
       }
+      channel.close();
+      closed = true;
     }
 
-    writeTIFF(pixels, rle.getWidth(), rle.getHeight(), filename, true);
+    /**
+     * abort() closes and deletes the file after a failure, discarding any
+     * strips still being packed.  It does nothing if close() has succeeded.
+     * Errors are ignored, since the write has already failed.
+     */
+    public void abort() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      pending.clear();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // The file is deleted below regardless.
+      }
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        // Nothing more can be done.
+      }
+    }
   }
 }
@@ -0,0 +1,108 @@
+/* VectorKernels.java */
+
+/**
+ *  The VectorKernels class runs the bulk loops of LaneKernels with explicit
+ *  SIMD instructions, through the incubating Vector API
+ *  (jdk.incubator.vector).  Each method handles as many whole vectors of
+ *  lanes as fit in the range it is given and returns where it stopped;
+ *  LaneKernels finishes the remaining lanes with its own loops, so the
+ *  output is exactly the same bytes.
+ *
+ *  The class lives in its own directory because it can only be compiled and
+ *  run with the incubator module added:
+ *
+ *         javac --add-modules jdk.incubator.vector -d <classes> \
+ *               -cp <classes> vector/VectorKernels.java
+ *         java --add-modules jdk.incubator.vector -cp <classes> ...
+ *
+ *  where <classes> is the directory holding the other compiled classes.
+ *  LaneKernels loads it by name only when the module is present, and the
+ *  constructor refuses to run on hardware whose vectors hold fewer than
+ *  eight ints, since a row of bytes then has no vector shape to narrow into.
+ */
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+class VectorKernels implements LaneKernels.Vectors {
+
+  /**
+   *  INTS is the widest int vector the hardware supports, and BYTES the byte
+   *  vector with the same number of lanes (null if there is none).
+   */
+  private static final VectorSpecies<Integer> INTS =
+    IntVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Byte> BYTES =
+    INTS.vectorBitSize() >= 256
+    ? VectorSpecies.of(byte.class,
+                       VectorShape.forBitSize(INTS.vectorBitSize() / 4))
+    : null;
+
+  VectorKernels() {
+    if (BYTES == null) {
+      throw new UnsupportedOperationException(INTS.vectorBitSize() +
+                                              "-bit vectors are too narrow.");
+    }
+  }
+
+  /**
+   *  ints() loads INTS.length() bytes, starting at index i of "bytes", as
+   *  unsigned ints.
+   */
+  private static IntVector ints(byte[] bytes, int i) {
+    return ((IntVector) ByteVector.fromArray(BYTES, bytes, i)
+            .convertShape(VectorOperators.B2I, INTS, 0)).and(0xff);
+  }
+
+  public int average(int[] above, int[] current, int[] below, int reciprocal,
+                     byte[] dst, int offset, int from, int to) {
+    int i = from;
+    for (int end = from + INTS.loopBound(Math.max(to - from, 0)); i < end;
+         i += INTS.length()) {
+      IntVector sum = IntVector.fromArray(INTS, above, i)
+                      .add(IntVector.fromArray(INTS, current, i))
+                      .add(IntVector.fromArray(INTS, below, i));
+      ((ByteVector) sum.mul(reciprocal)
+       .lanewise(VectorOperators.LSHR, 16)
+       .convertShape(VectorOperators.I2B, BYTES, 0))
+        .intoArray(dst, offset + i);
+    }
+    return i;
+  }
+
+  public int differences(byte[] above, int aboveOff, byte[] current,
+                         int currentOff, byte[] below, int belowOff,
+                         int[] s, int[] t, int lanes) {
+    int i = 0;
+    for (int end = INTS.loopBound(lanes); i < end; i += INTS.length()) {
+      IntVector a = ints(above, aboveOff + i);
+      IntVector b = ints(below, belowOff + i);
+      a.sub(b).intoArray(s, i);
+      a.add(ints(current, currentOff + i).lanewise(VectorOperators.LSHL, 1))
+       .add(b).intoArray(t, i);
+    }
+    return i;
+  }
+
+  public int energies(int[] s, int[] t, int[] e, int from, int to) {
+    int i = from;
+    for (int end = from + INTS.loopBound(Math.max(to - from, 0)); i < end;
+         i += INTS.length()) {
+      IntVector gx = IntVector.fromArray(INTS, s, i - 3)
+                     .add(IntVector.fromArray(INTS, s, i)
+                          .lanewise(VectorOperators.LSHL, 1))
+                     .add(IntVector.fromArray(INTS, s, i + 3));
+      IntVector gy = IntVector.fromArray(INTS, t, i - 3)
+                     .sub(IntVector.fromArray(INTS, t, i + 3));
+      gx.mul(gx).add(gy.mul(gy)).intoArray(e, i);
+    }
+    return i;
+  }
+
+  public String toString() {
+    return "Vector API, " + INTS.length() + " int lanes";
+  }
+}